@@ -0,0 +1,55 @@
+package com.brackeen.javagamebook.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.graphics.Animation;
+
+/**
+    Measures Animation.update() for many Animations at once, as
+    happens when every creature on a map is updated.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnimationBenchmark {
+
+    private static final long ELAPSED_TIME = 10;
+
+    @Param({ "4", "54" })
+    public int frameCount;
+
+    @Param({ "16", "256", "2048" })
+    public int spriteCount;
+
+    private Animation[] anims;
+
+    @Setup
+    public void setUp() {
+        BufferedImage image = new BufferedImage(32, 32,
+            BufferedImage.TYPE_INT_ARGB);
+        Animation anim = new Animation();
+        for (int i=0; i<frameCount; i++) {
+            anim.addFrame(image, 50 + i * 10);
+        }
+        anims = new Animation[spriteCount];
+        for (int i=0; i<spriteCount; i++) {
+            anims[i] = (Animation)anim.clone();
+            // start the animations at different frames
+            anims[i].update(i * 37);
+        }
+    }
+
+
+    @Benchmark
+    public void update() {
+        for (int i=0; i<anims.length; i++) {
+            anims[i].update(ELAPSED_TIME);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.brackeen.javagamebook.benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import com.brackeen.javagamebook.tilegame.ResourceManager;
+import com.brackeen.javagamebook.tilegame.TileMap;
+
+/**
+    Creates the maps used by the benchmarks. The maps are written
+    in the same text format as the game's own maps, so they go
+    through the normal ResourceManager.loadMap() parsing.
+    <p>The benchmarks must run from the BrackeenGame directory so
+    the images/ and maps/ folders are found.
+*/
+public class BenchmarkMaps {
+
+    /**
+        Height of the generated maps, in tiles. The same as the
+        game's maps.
+    */
+    public static final int MAP_HEIGHT = 19;
+
+    // the sprites placed on a generated map, in turn
+    private static final char[] SPRITES = { '1', '2', '3', 'o', '!' };
+
+    private static ResourceManager resourceManager;
+
+    /**
+        Gets a ResourceManager that loads images without a
+        display. Only one is created, since creating it loads
+        every image.
+    */
+    public static synchronized ResourceManager getResourceManager() {
+        if (resourceManager == null) {
+            System.setProperty("java.awt.headless", "true");
+            resourceManager = new ResourceManager(null);
+            // select the tiles of the first map
+            resourceManager.loadNextMap();
+        }
+        return resourceManager;
+    }
+
+
+    /**
+        Writes a map with the specified width (in tiles) and
+        number of sprites to a temporary file. The map has solid
+        ground, a floating platform every few tiles, and sprites
+        spread out at random (always the same for a given size).
+    */
+    public static File writeMap(int width, int spriteCount)
+        throws IOException
+    {
+        char[][] tiles = new char[MAP_HEIGHT][width];
+        for (int y=0; y<MAP_HEIGHT; y++) {
+            for (int x=0; x<width; x++) {
+                if (y >= MAP_HEIGHT - 2) {
+                    tiles[y][x] = 'E';
+                }
+                else if (y == MAP_HEIGHT - 7 && x % 24 >= 16) {
+                    tiles[y][x] = 'B';
+                }
+                else {
+                    tiles[y][x] = ' ';
+                }
+            }
+        }
+
+        Random random = new Random(width * 31 + spriteCount);
+        int placed = 0;
+        int attempts = 0;
+        while (placed < spriteCount && attempts < spriteCount * 100) {
+            attempts++;
+            int x = 4 + random.nextInt(Math.max(1, width - 5));
+            int y = random.nextInt(MAP_HEIGHT - 2);
+            if (tiles[y][x] == ' ') {
+                tiles[y][x] = SPRITES[placed % SPRITES.length];
+                placed++;
+            }
+        }
+
+        File file = File.createTempFile("benchmark-map", ".txt");
+        file.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        out.println("# generated: " + width + " tiles wide, " +
+            placed + " sprites");
+        for (int y=0; y<MAP_HEIGHT; y++) {
+            out.println(new String(tiles[y]));
+        }
+        out.close();
+        return file;
+    }
+
+
+    /**
+        Creates a map with the specified width (in tiles) and
+        number of sprites.
+    */
+    public static TileMap createMap(int width, int spriteCount)
+        throws IOException
+    {
+        File file = writeMap(width, spriteCount);
+        try {
+            return getResourceManager().loadMap(file.getPath());
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
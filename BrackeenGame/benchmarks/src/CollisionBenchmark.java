@@ -0,0 +1,74 @@
+package com.brackeen.javagamebook.benchmarks;
+
+import java.awt.Point;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.GameManager;
+import com.brackeen.javagamebook.tilegame.TileMap;
+
+/**
+    Measures GameManager's tile and sprite collision checks, run
+    once for every sprite on the map, the way update() does.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollisionBenchmark {
+
+    @Param({ "128", "1024" })
+    public int mapWidth;
+
+    @Param({ "16", "256", "2048" })
+    public int spriteCount;
+
+    private GameManager game;
+    private Sprite[] sprites;
+
+    @Setup
+    public void setUp() throws IOException {
+        TileMap map = BenchmarkMaps.createMap(mapWidth, spriteCount);
+        game = new GameManager();
+        game.setMap(map);
+
+        ArrayList list = new ArrayList();
+        Iterator i = map.getSprites();
+        while (i.hasNext()) {
+            list.add(i.next());
+        }
+        sprites = (Sprite[])list.toArray(new Sprite[list.size()]);
+    }
+
+
+    @Benchmark
+    public void tileCollision(Blackhole bh) {
+        for (int i=0; i<sprites.length; i++) {
+            Sprite sprite = sprites[i];
+            // a step left or right, then a step down
+            float newX = sprite.getX() + ((i & 1) == 0 ? 4 : -4);
+            Point tile = game.getTileCollision(sprite, newX,
+                sprite.getY());
+            bh.consume(tile);
+            tile = game.getTileCollision(sprite, sprite.getX(),
+                sprite.getY() + 4);
+            bh.consume(tile);
+        }
+    }
+
+
+    @Benchmark
+    public void spriteCollision(Blackhole bh) {
+        for (int i=0; i<sprites.length; i++) {
+            bh.consume(game.getSpriteCollision(sprites[i]));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.brackeen.javagamebook.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.graphics.Animation;
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.sound.EchoFilter;
+import com.brackeen.javagamebook.sound.Filter3d;
+import com.brackeen.javagamebook.sound.FilterSequence;
+import com.brackeen.javagamebook.sound.SoundFilter;
+
+/**
+    Measures the filter() loops of EchoFilter and Filter3d on a
+    buffer of 16-bit samples, both on bytes and on floats, and a
+    FilterSequence of the two the way FilteredSoundStream runs
+    it.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    /**
+        Buffer size in bytes. 8820 bytes is 100ms of 44100Hz,
+        16-bit mono sound, the size SoundManager uses.
+    */
+    @Param({ "1024", "8820", "88200" })
+    public int bufferSize;
+
+    private byte[] samples;
+    private float[] floatSamples;
+    private FilterSequence sequence;
+    private EchoFilter echoFilter;
+    private Filter3d filter3d;
+    private Sprite source;
+
+    @Setup
+    public void setUp() {
+        samples = new byte[bufferSize];
+        new Random(42).nextBytes(samples);
+
+        echoFilter = new EchoFilter(11025, .6f);
+
+        Animation anim = new Animation();
+        anim.addFrame(new BufferedImage(1, 1,
+            BufferedImage.TYPE_INT_ARGB), 100);
+        source = new Sprite(anim);
+        Sprite listener = new Sprite(anim);
+        listener.setX(100);
+        filter3d = new Filter3d(source, listener, 1000);
+
+        floatSamples = new float[bufferSize / 2];
+        SoundFilter.toFloats(samples, 0, floatSamples, 0,
+            floatSamples.length);
+        sequence = new FilterSequence(new SoundFilter[] {
+            new EchoFilter(11025, .6f),
+            new Filter3d(source, listener, 1000)
+        });
+    }
+
+
+    @Benchmark
+    public byte[] echo() {
+        echoFilter.filter(samples, 0, samples.length);
+        return samples;
+    }
+
+
+    @Benchmark
+    public byte[] filter3d() {
+        // move the source so the volume keeps changing
+        source.setX((source.getX() + 50) % 1500);
+        filter3d.filter(samples, 0, samples.length);
+        return samples;
+    }
+
+
+    @Benchmark
+    public float[] echoFloat() {
+        echoFilter.filter(floatSamples, 0, floatSamples.length);
+        return floatSamples;
+    }
+
+
+    @Benchmark
+    public float[] filter3dFloat() {
+        source.setX((source.getX() + 50) % 1500);
+        filter3d.filter(floatSamples, 0, floatSamples.length);
+        return floatSamples;
+    }
+
+
+    @Benchmark
+    public byte[] sequence() {
+        // convert once, filter, convert back
+        source.setX((source.getX() + 50) % 1500);
+        SoundFilter.toFloats(samples, 0, floatSamples, 0,
+            floatSamples.length);
+        sequence.filter(floatSamples, 0, floatSamples.length);
+        SoundFilter.toBytes(floatSamples, 0, samples, 0,
+            floatSamples.length);
+        return samples;
+    }
+}
@@ -0,0 +1,51 @@
+package com.brackeen.javagamebook.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.tilegame.ResourceManager;
+import com.brackeen.javagamebook.tilegame.TileMap;
+
+/**
+    Measures ResourceManager.loadMap(), reading and parsing a map
+    file and cloning its sprites. The images are loaded once,
+    before the measurement.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadMapBenchmark {
+
+    @Param({ "128", "1024", "8192" })
+    public int mapWidth;
+
+    @Param({ "16", "256", "2048" })
+    public int spriteCount;
+
+    private ResourceManager resourceManager;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        resourceManager = BenchmarkMaps.getResourceManager();
+        file = BenchmarkMaps.writeMap(mapWidth, spriteCount);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+
+    @Benchmark
+    public TileMap loadMap() throws IOException {
+        return resourceManager.loadMap(file.getPath());
+    }
+}
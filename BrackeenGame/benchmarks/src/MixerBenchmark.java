@@ -0,0 +1,69 @@
+package com.brackeen.javagamebook.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.sound.sampled.AudioFormat;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.sound.EchoFilter;
+import com.brackeen.javagamebook.sound.MemorySink;
+import com.brackeen.javagamebook.sound.Sound;
+import com.brackeen.javagamebook.sound.SoundManager;
+
+/**
+    Measures how long the SoundMixer takes to render one second
+    of sound offline, with a number of looping voices playing,
+    with and without an echo on each voice. No sound card is
+    needed.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixerBenchmark {
+
+    // the game's format: 44100Hz, 16-bit, stereo
+    private static final AudioFormat FORMAT =
+        new AudioFormat(44100, 16, 2, true, false);
+
+    @Param({ "1", "8", "32" })
+    public int voices;
+
+    @Param({ "false", "true" })
+    public boolean echo;
+
+    private MemorySink sink;
+    private SoundManager soundManager;
+
+    @Setup
+    public void setUp() {
+        // one second of noise
+        byte[] samples = new byte[FORMAT.getFrameSize() * 44100];
+        new Random(42).nextBytes(samples);
+        Sound sound = new Sound(samples);
+
+        sink = new MemorySink(FORMAT);
+        soundManager = new SoundManager(FORMAT, voices, sink);
+        for (int i=0; i<voices; i++) {
+            soundManager.play(sound,
+                echo ? new EchoFilter(11025, .6f) : null, true);
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        soundManager.close();
+    }
+
+
+    @Benchmark
+    public long renderOneSecond() {
+        sink.reset();
+        soundManager.render(1000);
+        return sink.getFrameCount();
+    }
+}
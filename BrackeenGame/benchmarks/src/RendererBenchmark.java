@@ -0,0 +1,82 @@
+package com.brackeen.javagamebook.benchmarks;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.ResourceManager;
+import com.brackeen.javagamebook.tilegame.TileMap;
+import com.brackeen.javagamebook.tilegame.TileMapRenderer;
+
+/**
+    Measures TileMapRenderer.draw() into an offscreen
+    BufferedImage. The player scrolls across the map a little
+    every frame, so new chunks of tiles keep coming into view.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RendererBenchmark {
+
+    private static final int SCROLL_SPEED = 7;
+
+    @Param({ "128", "1024" })
+    public int mapWidth;
+
+    @Param({ "16", "256", "2048" })
+    public int spriteCount;
+
+    @Param({ "800x600", "1920x1080" })
+    public String screenSize;
+
+    private TileMap map;
+    private TileMapRenderer renderer;
+    private BufferedImage image;
+    private Graphics2D g;
+    private int screenWidth;
+    private int screenHeight;
+    private int scrollWidth;
+
+    @Setup
+    public void setUp() throws IOException {
+        int split = screenSize.indexOf('x');
+        screenWidth = Integer.parseInt(screenSize.substring(0, split));
+        screenHeight = Integer.parseInt(screenSize.substring(split + 1));
+
+        ResourceManager resourceManager =
+            BenchmarkMaps.getResourceManager();
+        map = BenchmarkMaps.createMap(mapWidth, spriteCount);
+        renderer = new TileMapRenderer();
+        renderer.setBackground(
+            resourceManager.loadImage("Escenarios/Fondo03A.png"),
+            resourceManager.loadImage("Escenarios/Fondo01B.png"),
+            resourceManager.loadImage("Escenarios/Fondo03C.png"));
+        image = new BufferedImage(screenWidth, screenHeight,
+            BufferedImage.TYPE_INT_RGB);
+        g = image.createGraphics();
+        scrollWidth = Math.max(1,
+            TileMapRenderer.tilesToPixels(mapWidth) - screenWidth);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        g.dispose();
+    }
+
+
+    @Benchmark
+    public BufferedImage draw() {
+        Sprite player = map.getPlayer();
+        player.setX((player.getX() + SCROLL_SPEED) % scrollWidth);
+        renderer.draw(g, map, screenWidth, screenHeight);
+        return image;
+    }
+}
@@ -0,0 +1,50 @@
+package com.brackeen.javagamebook.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.tilegame.GameManager;
+import com.brackeen.javagamebook.tilegame.TileMap;
+
+/**
+    Measures GameManager.updateSprites() on a large map, on the
+    game thread alone and split into jobs on several threads.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateBenchmark {
+
+    @Param({ "256", "4096" })
+    public int spriteCount;
+
+    @Param({ "1", "2", "4" })
+    public int threads;
+
+    private GameManager game;
+
+    @Setup
+    public void setUp() throws IOException {
+        TileMap map = BenchmarkMaps.createMap(1024, spriteCount);
+        game = new GameManager();
+        game.setMap(map);
+        game.setUpdateThreads(threads);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        game.setUpdateThreads(1);
+    }
+
+
+    @Benchmark
+    public void updateSprites() {
+        game.updateSprites(10);
+    }
+}
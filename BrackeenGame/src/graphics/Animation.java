@@ -1,11 +1,14 @@
 package com.brackeen.javagamebook.graphics;
 
+import java.awt.Graphics;
 import java.awt.Image;
 import java.util.ArrayList;
 
 /**
     The Animation class manages a series of images (frames) and
-    the amount of time to display each frame.
+    the amount of time to display each frame. Frames can also be
+    Regions of a TextureAtlas, which are drawn straight from the
+    atlas page.
 */
 public class Animation {
 
@@ -52,7 +55,20 @@ public class Animation {
         long duration)
     {
         totalDuration += duration;
-        frames.add(new AnimFrame(image, totalDuration));
+        frames.add(new AnimFrame(image, null, totalDuration));
+    }
+
+
+    /**
+        Adds a TextureAtlas Region to the animation with the
+        specified duration (time to display the image).
+    */
+    public synchronized void addFrame(TextureAtlas.Region region,
+        long duration)
+    {
+        totalDuration += duration;
+        frames.add(new AnimFrame(region.getImage(), region,
+            totalDuration));
     }
 
 
@@ -99,6 +115,24 @@ public class Animation {
     }
 
 
+    /**
+        Draws this Animation's current image at the specified
+        location. Does nothing if this animation has no images.
+    */
+    public synchronized void draw(Graphics g, int x, int y) {
+        if (frames.size() == 0) {
+            return;
+        }
+        AnimFrame frame = getFrame(currFrameIndex);
+        if (frame.region != null) {
+            frame.region.draw(g, x, y);
+        }
+        else {
+            g.drawImage(frame.image, x, y, null);
+        }
+    }
+
+
     private AnimFrame getFrame(int i) {
         return (AnimFrame)frames.get(i);
     }
@@ -107,10 +141,14 @@ public class Animation {
     private class AnimFrame {
 
         Image image;
+        TextureAtlas.Region region;
         long endTime;
 
-        public AnimFrame(Image image, long endTime) {
+        public AnimFrame(Image image, TextureAtlas.Region region,
+            long endTime)
+        {
             this.image = image;
+            this.region = region;
             this.endTime = endTime;
         }
     }
@@ -0,0 +1,226 @@
+package com.brackeen.javagamebook.graphics;
+
+/**
+    The PhysicsStore class keeps the position and velocity of
+    many Sprites in parallel arrays, so gravity and movement can
+    be applied to all of them in tight loops instead of one
+    object at a time. A Sprite added to a PhysicsStore becomes a
+    handle into it; its getters and setters read and write the
+    arrays until it is removed again.
+*/
+public class PhysicsStore {
+
+    /**
+        Flag set for Sprites that are pulled down by gravity.
+    */
+    public static final int FLAG_GRAVITY = 1;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    // position (pixels)
+    float[] x;
+    float[] y;
+    // velocity (pixels per millisecond)
+    float[] dx;
+    float[] dy;
+    // position at the start of the last simulation step
+    float[] lastX;
+    float[] lastY;
+    int[] flags;
+
+    // position after the next step, before tile collisions
+    private float[] nextX;
+    private float[] nextY;
+    private Sprite[] sprites;
+    private int size;
+
+    /**
+        Creates a new, empty PhysicsStore.
+    */
+    public PhysicsStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+
+    /**
+        Creates a new, empty PhysicsStore with room for the
+        specified number of Sprites before it has to grow.
+    */
+    public PhysicsStore(int capacity) {
+        capacity = Math.max(1, capacity);
+        x = new float[capacity];
+        y = new float[capacity];
+        dx = new float[capacity];
+        dy = new float[capacity];
+        lastX = new float[capacity];
+        lastY = new float[capacity];
+        nextX = new float[capacity];
+        nextY = new float[capacity];
+        flags = new int[capacity];
+        sprites = new Sprite[capacity];
+    }
+
+
+    /**
+        Gets the number of Sprites in this store.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Gets the Sprite at the specified index.
+    */
+    public Sprite getSprite(int index) {
+        return sprites[index];
+    }
+
+
+    /**
+        Adds a Sprite to this store. The Sprite's current
+        position, velocity and flags are copied into the store.
+        A Sprite can only be in one store at a time.
+    */
+    public void add(Sprite sprite) {
+        if (sprite.getPhysicsStore() != null) {
+            throw new IllegalArgumentException(
+                "Sprite is already in a PhysicsStore");
+        }
+        if (size == sprites.length) {
+            grow();
+        }
+        int i = size++;
+        x[i] = sprite.getX();
+        y[i] = sprite.getY();
+        dx[i] = sprite.getVelocityX();
+        dy[i] = sprite.getVelocityY();
+        lastX[i] = sprite.getLastX();
+        lastY[i] = sprite.getLastY();
+        flags[i] = sprite.getPhysicsFlags();
+        sprites[i] = sprite;
+        sprite.attach(this, i);
+    }
+
+
+    /**
+        Removes a Sprite from this store. The Sprite's position,
+        velocity and flags are copied back into the Sprite. The
+        last Sprite in the store takes the removed one's slot.
+    */
+    public void remove(Sprite sprite) {
+        if (sprite.getPhysicsStore() != this) {
+            return;
+        }
+        int i = sprite.getPhysicsIndex();
+        sprite.detach();
+
+        int last = --size;
+        if (i != last) {
+            x[i] = x[last];
+            y[i] = y[last];
+            dx[i] = dx[last];
+            dy[i] = dy[last];
+            lastX[i] = lastX[last];
+            lastY[i] = lastY[last];
+            nextX[i] = nextX[last];
+            nextY[i] = nextY[last];
+            flags[i] = flags[last];
+            sprites[i] = sprites[last];
+            sprites[i].setPhysicsIndex(i);
+        }
+        sprites[last] = null;
+    }
+
+
+    /**
+        Adds gravity to the vertical velocity of every Sprite
+        with the FLAG_GRAVITY flag.
+    */
+    public void applyGravity(float gravity, long elapsedTime) {
+        float amount = gravity * elapsedTime;
+        float[] dy = this.dy;
+        int[] flags = this.flags;
+        for (int i=0; i<size; i++) {
+            if ((flags[i] & FLAG_GRAVITY) != 0) {
+                dy[i] += amount;
+            }
+        }
+    }
+
+
+    /**
+        Computes where every Sprite would be after moving for
+        the specified time at its current velocity. The results
+        are available from getNextX() and getNextY() until the
+        next call.
+    */
+    public void predictPositions(long elapsedTime) {
+        float[] x = this.x;
+        float[] y = this.y;
+        float[] dx = this.dx;
+        float[] dy = this.dy;
+        float[] nextX = this.nextX;
+        float[] nextY = this.nextY;
+        for (int i=0; i<size; i++) {
+            nextX[i] = x[i] + dx[i] * elapsedTime;
+        }
+        for (int i=0; i<size; i++) {
+            nextY[i] = y[i] + dy[i] * elapsedTime;
+        }
+    }
+
+
+    /**
+        Gets the x position computed for the specified Sprite by
+        the last call to predictPositions().
+    */
+    public float getNextX(Sprite sprite) {
+        return nextX[sprite.getPhysicsIndex()];
+    }
+
+
+    /**
+        Gets the y position computed for the specified Sprite by
+        the last call to predictPositions().
+    */
+    public float getNextY(Sprite sprite) {
+        return nextY[sprite.getPhysicsIndex()];
+    }
+
+
+    /**
+        Remembers the current position of every Sprite as the
+        start of a simulation step.
+    */
+    public void savePositions() {
+        System.arraycopy(x, 0, lastX, 0, size);
+        System.arraycopy(y, 0, lastY, 0, size);
+    }
+
+
+    private void grow() {
+        int capacity = sprites.length * 2;
+        x = copyOf(x, capacity);
+        y = copyOf(y, capacity);
+        dx = copyOf(dx, capacity);
+        dy = copyOf(dy, capacity);
+        lastX = copyOf(lastX, capacity);
+        lastY = copyOf(lastY, capacity);
+        nextX = copyOf(nextX, capacity);
+        nextY = copyOf(nextY, capacity);
+        int[] newFlags = new int[capacity];
+        System.arraycopy(flags, 0, newFlags, 0, size);
+        flags = newFlags;
+        Sprite[] newSprites = new Sprite[capacity];
+        System.arraycopy(sprites, 0, newSprites, 0, size);
+        sprites = newSprites;
+    }
+
+
+    private float[] copyOf(float[] array, int capacity) {
+        float[] newArray = new float[capacity];
+        System.arraycopy(array, 0, newArray, 0, size);
+        return newArray;
+    }
+}
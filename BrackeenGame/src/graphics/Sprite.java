@@ -1,5 +1,6 @@
 package com.brackeen.javagamebook.graphics;
 
+import java.awt.Graphics;
 import java.awt.Image;
 
 public class Sprite {
@@ -12,6 +13,14 @@ public class Sprite {
     private float dx;
     private float dy;
     private boolean moving;
+    // position at the start of the last simulation step (pixels)
+    private float lastX;
+    private float lastY;
+    private boolean hasLastPosition;
+    private int physicsFlags;
+    // while in a PhysicsStore, the fields above are kept there
+    private PhysicsStore store;
+    private int physicsIndex;
 
     /**
         Creates a new Sprite object with the specified Animation.
@@ -25,10 +34,8 @@ public class Sprite {
         on the velocity.
     */
     public void update(long elapsedTime) {
-        float oldX=x;
-        float oldY=y;
-        x += dx * elapsedTime;
-        y += dy * elapsedTime;
+        setX(getX() + getVelocityX() * elapsedTime);
+        setY(getY() + getVelocityY() * elapsedTime);
         anim.update(elapsedTime);
         
     }
@@ -37,6 +44,9 @@ public class Sprite {
         Gets this Sprite's current x position.
     */
     public float getX() {
+        if (store != null) {
+            return store.x[physicsIndex];
+        }
         return x;
     }
 
@@ -44,13 +54,80 @@ public class Sprite {
         Gets this Sprite's current y position.
     */
     public float getY() {
+        if (store != null) {
+            return store.y[physicsIndex];
+        }
         return y;
     }
 
+    /**
+        Remembers this Sprite's current position as the start of
+        a simulation step. The renderer blends between this
+        position and the current one.
+    */
+    public void savePosition() {
+        if (store != null) {
+            store.lastX[physicsIndex] = store.x[physicsIndex];
+            store.lastY[physicsIndex] = store.y[physicsIndex];
+            return;
+        }
+        lastX = x;
+        lastY = y;
+        hasLastPosition = true;
+    }
+
+
+    /**
+        Gets the x position saved by savePosition(), or the
+        current x position if it was never saved.
+    */
+    public float getLastX() {
+        if (store != null) {
+            return store.lastX[physicsIndex];
+        }
+        return hasLastPosition ? lastX : x;
+    }
+
+
+    /**
+        Gets the y position saved by savePosition(), or the
+        current y position if it was never saved.
+    */
+    public float getLastY() {
+        if (store != null) {
+            return store.lastY[physicsIndex];
+        }
+        return hasLastPosition ? lastY : y;
+    }
+
+    /**
+        Gets this Sprite's x position interpolated between the
+        saved position and the current position. An
+        interpolation of 0 is the saved position, 1 is the
+        current position.
+    */
+    public float getInterpolatedX(float interpolation) {
+        float lastX = getLastX();
+        return lastX + (getX() - lastX) * interpolation;
+    }
+
+    /**
+        Gets this Sprite's y position interpolated between the
+        saved position and the current position.
+    */
+    public float getInterpolatedY(float interpolation) {
+        float lastY = getLastY();
+        return lastY + (getY() - lastY) * interpolation;
+    }
+
     /**
         Sets this Sprite's current x position.
     */
     public void setX(float x) {
+        if (store != null) {
+            store.x[physicsIndex] = x;
+            return;
+        }
         this.x = x;
     }
 
@@ -58,6 +135,10 @@ public class Sprite {
         Sets this Sprite's current y position.
     */
     public void setY(float y) {
+        if (store != null) {
+            store.y[physicsIndex] = y;
+            return;
+        }
         this.y = y;
     }
 
@@ -82,6 +163,9 @@ public class Sprite {
         per millisecond.
     */
     public float getVelocityX() {
+        if (store != null) {
+            return store.dx[physicsIndex];
+        }
         return dx;
     }
 
@@ -90,6 +174,9 @@ public class Sprite {
         per millisecond.
     */
     public float getVelocityY() {
+        if (store != null) {
+            return store.dy[physicsIndex];
+        }
         return dy;
     }
 
@@ -98,6 +185,10 @@ public class Sprite {
         per millisecond.
     */
     public void setVelocityX(float dx) {
+        if (store != null) {
+            store.dx[physicsIndex] = dx;
+            return;
+        }
         this.dx = dx;
     }
 
@@ -106,9 +197,96 @@ public class Sprite {
         per millisecond.
     */
     public void setVelocityY(float dy) {
+        if (store != null) {
+            store.dy[physicsIndex] = dy;
+            return;
+        }
         this.dy = dy;
     }
 
+    /**
+        Checks if this Sprite is pulled down by gravity.
+    */
+    public boolean isAffectedByGravity() {
+        return (getPhysicsFlags() & PhysicsStore.FLAG_GRAVITY) != 0;
+    }
+
+
+    /**
+        Sets whether this Sprite is pulled down by gravity.
+    */
+    public void setAffectedByGravity(boolean gravity) {
+        int flags = getPhysicsFlags();
+        if (gravity) {
+            flags |= PhysicsStore.FLAG_GRAVITY;
+        }
+        else {
+            flags &= ~PhysicsStore.FLAG_GRAVITY;
+        }
+        if (store != null) {
+            store.flags[physicsIndex] = flags;
+        }
+        else {
+            physicsFlags = flags;
+        }
+    }
+
+
+    /**
+        Gets the PhysicsStore this Sprite is a handle into, or
+        null if it keeps its own position and velocity.
+    */
+    public PhysicsStore getPhysicsStore() {
+        return store;
+    }
+
+
+    int getPhysicsFlags() {
+        if (store != null) {
+            return store.flags[physicsIndex];
+        }
+        return physicsFlags;
+    }
+
+
+    int getPhysicsIndex() {
+        return physicsIndex;
+    }
+
+
+    void setPhysicsIndex(int physicsIndex) {
+        this.physicsIndex = physicsIndex;
+    }
+
+
+    /**
+        Called by a PhysicsStore after it copied this Sprite's
+        state into the specified slot.
+    */
+    void attach(PhysicsStore store, int physicsIndex) {
+        this.store = store;
+        this.physicsIndex = physicsIndex;
+    }
+
+
+    /**
+        Called by a PhysicsStore before this Sprite's slot is
+        reused. Copies the state back into this Sprite.
+    */
+    void detach() {
+        int i = physicsIndex;
+        x = store.x[i];
+        y = store.y[i];
+        dx = store.dx[i];
+        dy = store.dy[i];
+        lastX = store.lastX[i];
+        lastY = store.lastY[i];
+        hasLastPosition = true;
+        physicsFlags = store.flags[i];
+        store = null;
+    }
+
+
     /**
         Gets this Sprite's current image.
     */
@@ -116,6 +294,14 @@ public class Sprite {
         return anim.getImage();
     }
 
+    /**
+        Draws this Sprite's current image at the specified
+        location.
+    */
+    public void draw(Graphics g, int x, int y) {
+        anim.draw(g, x, y);
+    }
+
     /**
         Clones this Sprite. Does not clone position or velocity
         info.
@@ -0,0 +1,337 @@
+package com.brackeen.javagamebook.graphics;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+
+/**
+    The TextureAtlas class packs many small images into a few
+    large images (pages). Each packed image becomes a Region: a
+    rectangle of a page. Drawing Regions from a few large pages
+    means fewer images to load and fewer images for the graphics
+    pipeline to manage.
+    <p>Images are packed in rows ("shelves") in the order they
+    are added. A new page is started when the current one is
+    full.
+    <p>An atlas can be saved to a directory and loaded again, so
+    the individual images only need to be loaded once.
+*/
+public class TextureAtlas {
+
+    public static final int DEFAULT_PAGE_SIZE = 1024;
+
+    // empty pixels between regions
+    private static final int PADDING = 1;
+
+    private GraphicsConfiguration gc;
+    private int pageSize;
+    private ArrayList pages;
+    private HashMap regions;
+    private IdentityHashMap regionsByImage;
+    private boolean modified;
+
+    // the free shelf on the last page
+    private int shelfX;
+    private int shelfY;
+    private int shelfHeight;
+
+    /**
+        Creates a new, empty TextureAtlas. Pages are created
+        with the specified GraphicsConfiguration, or as plain
+        BufferedImages if it is null.
+    */
+    public TextureAtlas(GraphicsConfiguration gc, int pageSize) {
+        this.gc = gc;
+        this.pageSize = pageSize;
+        pages = new ArrayList();
+        regions = new HashMap();
+        regionsByImage = new IdentityHashMap();
+    }
+
+
+    /**
+        Packs an image into this atlas and returns its Region.
+        If a Region with the same name already exists, that
+        Region is returned instead. Returns null if the image is
+        null or larger than a page.
+    */
+    public synchronized Region add(String name, Image image) {
+        Region region = (Region)regions.get(name);
+        if (region != null || image == null) {
+            return region;
+        }
+        int width = image.getWidth(null);
+        int height = image.getHeight(null);
+        if (width <= 0 || height <= 0 ||
+            width > pageSize || height > pageSize)
+        {
+            return null;
+        }
+
+        // find a place for the image
+        if (pages.size() == 0) {
+            startPage();
+        }
+        if (shelfX + width > pageSize) {
+            // start a new shelf
+            shelfX = 0;
+            shelfY += shelfHeight + PADDING;
+            shelfHeight = 0;
+        }
+        if (shelfY + height > pageSize) {
+            startPage();
+        }
+
+        // draw the image on the page
+        int pageIndex = pages.size() - 1;
+        BufferedImage page = (BufferedImage)pages.get(pageIndex);
+        Graphics2D g = page.createGraphics();
+        // copy the pixels as they are, without blending
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, shelfX, shelfY, null);
+        g.dispose();
+
+        region = new Region(name, page, pageIndex, shelfX, shelfY,
+            width, height);
+        putRegion(region);
+        shelfX += width + PADDING;
+        shelfHeight = Math.max(shelfHeight, height);
+        modified = true;
+        return region;
+    }
+
+
+    /**
+        Gets the Region with the specified name, or null if
+        there isn't one.
+    */
+    public synchronized Region getRegion(String name) {
+        return (Region)regions.get(name);
+    }
+
+
+    /**
+        Gets the Region whose image (see Region.getImage()) is
+        the specified image, or null if the image isn't from
+        this atlas.
+    */
+    public synchronized Region getRegion(Image image) {
+        return (Region)regionsByImage.get(image);
+    }
+
+
+    /**
+        Gets the names of all Regions in this atlas.
+    */
+    public synchronized String[] getRegionNames() {
+        return (String[])regions.keySet().toArray(
+            new String[regions.size()]);
+    }
+
+
+    /**
+        Gets the number of pages in this atlas.
+    */
+    public synchronized int getPageCount() {
+        return pages.size();
+    }
+
+
+    /**
+        Checks if Regions were added since this atlas was
+        created, loaded, or saved.
+    */
+    public synchronized boolean isModified() {
+        return modified;
+    }
+
+
+    /**
+        Saves this atlas to the specified directory. Each page is
+        saved as name0.png, name1.png, etc., and the Regions are
+        listed in name.txt.
+    */
+    public synchronized void save(File dir, String name)
+        throws IOException
+    {
+        dir.mkdirs();
+        for (int i=0; i<pages.size(); i++) {
+            ImageIO.write((BufferedImage)pages.get(i), "png",
+                new File(dir, name + i + ".png"));
+        }
+
+        // write the index last, so a partly saved atlas is never
+        // loaded
+        PrintWriter writer = new PrintWriter(new BufferedWriter(
+            new FileWriter(new File(dir, name + ".txt"))));
+        writer.println(pageSize + "\t" + pages.size());
+        Iterator i = regions.values().iterator();
+        while (i.hasNext()) {
+            Region region = (Region)i.next();
+            writer.println(region.name + "\t" + region.pageIndex +
+                "\t" + region.x + "\t" + region.y + "\t" +
+                region.width + "\t" + region.height);
+        }
+        writer.close();
+        modified = false;
+    }
+
+
+    /**
+        Loads an atlas saved with save(). Returns null if the
+        atlas doesn't exist or can't be read. Regions added to a
+        loaded atlas are packed on new pages.
+    */
+    public static TextureAtlas load(GraphicsConfiguration gc,
+        File dir, String name)
+    {
+        File indexFile = new File(dir, name + ".txt");
+        if (!indexFile.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(
+                new FileReader(indexFile));
+            try {
+                String[] header = reader.readLine().split("\t");
+                TextureAtlas atlas = new TextureAtlas(gc,
+                    Integer.parseInt(header[0]));
+                int numPages = Integer.parseInt(header[1]);
+                for (int i=0; i<numPages; i++) {
+                    BufferedImage image = ImageIO.read(
+                        new File(dir, name + i + ".png"));
+                    BufferedImage page = atlas.createPage(
+                        image.getWidth(), image.getHeight());
+                    Graphics2D g = page.createGraphics();
+                    g.setComposite(AlphaComposite.Src);
+                    g.drawImage(image, 0, 0, null);
+                    g.dispose();
+                    atlas.pages.add(page);
+                }
+                // nothing more fits on the loaded pages
+                atlas.shelfX = atlas.pageSize;
+                atlas.shelfY = atlas.pageSize;
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    int pageIndex = Integer.parseInt(fields[1]);
+                    atlas.putRegion(new Region(fields[0],
+                        (BufferedImage)atlas.pages.get(pageIndex),
+                        pageIndex,
+                        Integer.parseInt(fields[2]),
+                        Integer.parseInt(fields[3]),
+                        Integer.parseInt(fields[4]),
+                        Integer.parseInt(fields[5])));
+                }
+                return atlas;
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (Exception ex) {
+            // missing or corrupt - the atlas will be rebuilt
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+
+    private void startPage() {
+        pages.add(createPage(pageSize, pageSize));
+        shelfX = 0;
+        shelfY = 0;
+        shelfHeight = 0;
+    }
+
+
+    private BufferedImage createPage(int width, int height) {
+        if (gc == null) {
+            return new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        }
+        return gc.createCompatibleImage(width, height,
+            Transparency.TRANSLUCENT);
+    }
+
+
+    private void putRegion(Region region) {
+        regions.put(region.name, region);
+        regionsByImage.put(region.image, region);
+    }
+
+
+    /**
+        A Region is a named rectangle of an atlas page.
+    */
+    public static class Region {
+
+        private String name;
+        private BufferedImage page;
+        private int pageIndex;
+        private int x;
+        private int y;
+        private int width;
+        private int height;
+        private Image image;
+
+        private Region(String name, BufferedImage page,
+            int pageIndex, int x, int y, int width, int height)
+        {
+            this.name = name;
+            this.page = page;
+            this.pageIndex = pageIndex;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            // shares the page's pixels
+            image = page.getSubimage(x, y, width, height);
+        }
+
+        /**
+            Gets the name of this Region.
+        */
+        public String getName() {
+            return name;
+        }
+
+        /**
+            Gets an image of just this Region. The image shares
+            its pixels with the page.
+        */
+        public Image getImage() {
+            return image;
+        }
+
+        /**
+            Gets the width of this Region.
+        */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+            Gets the height of this Region.
+        */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+            Draws this Region at the specified location, straight
+            from the page.
+        */
+        public void draw(Graphics g, int x, int y) {
+            g.drawImage(page, x, y, x + width, y + height,
+                this.x, this.y, this.x + width, this.y + height,
+                null);
+        }
+    }
+}
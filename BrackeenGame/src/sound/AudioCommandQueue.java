@@ -0,0 +1,131 @@
+package com.brackeen.javagamebook.sound;
+
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+    The AudioCommandQueue class passes commands from the game
+    thread to the audio thread without locks. It's a ring of
+    pre-allocated Command objects: the producer fills in the next
+    free Command and publishes it by moving the tail, and the
+    consumer drains everything up to the tail once per block.
+    <p>There must be only one producer thread and one consumer
+    thread. Neither ever blocks; if the ring is full, offer()
+    returns false and the command is lost.
+*/
+class AudioCommandQueue {
+
+    public static final int PLAY = 0;
+    public static final int STOP = 1;
+    public static final int PAUSE = 2;
+    public static final int RESUME = 3;
+    public static final int SET_GAIN = 4;
+    public static final int SET_PAN = 5;
+    public static final int SET_FILTER_PARAMETER = 6;
+
+    /**
+        A message for the audio thread. Which fields are used
+        depends on the type.
+    */
+    static class Command {
+        int type;
+        InputStream source;
+        int priority;
+        long time;
+        SoundFilter filter;
+        int parameter;
+        float value;
+    }
+
+    private Command[] commands;
+    private int mask;
+    // next Command to read, written by the consumer
+    private AtomicLong head;
+    // next Command to write, written by the producer
+    private AtomicLong tail;
+    private volatile long overflowCount;
+
+    /**
+        Creates a new AudioCommandQueue. The capacity is rounded
+        up to a power of two.
+    */
+    public AudioCommandQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        commands = new Command[size];
+        for (int i=0; i<size; i++) {
+            commands[i] = new Command();
+        }
+        mask = size - 1;
+        head = new AtomicLong();
+        tail = new AtomicLong();
+    }
+
+
+    /**
+        Gets the number of commands lost because the queue was
+        full.
+    */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+
+    /**
+        Gets the number of commands waiting to be drained.
+    */
+    public int size() {
+        return (int)(tail.get() - head.get());
+    }
+
+
+    /**
+        Sends a command. Returns false if the queue is full.
+        Call from the producer thread only.
+    */
+    public boolean offer(int type, InputStream source, int priority,
+        SoundFilter filter, int parameter, float value)
+    {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            overflowCount++;
+            return false;
+        }
+        Command command = commands[(int)t & mask];
+        command.type = type;
+        command.source = source;
+        command.priority = priority;
+        command.time = System.nanoTime();
+        command.filter = filter;
+        command.parameter = parameter;
+        command.value = value;
+        // publish the command
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+
+    /**
+        Gets the next command, or null if there is none. The
+        Command must be handled before calling release().
+        Call from the consumer thread only.
+    */
+    public Command peek() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        return commands[(int)h & mask];
+    }
+
+
+    /**
+        Frees the command returned by peek() for reuse.
+    */
+    public void release() {
+        long h = head.get();
+        Command command = commands[(int)h & mask];
+        command.source = null;
+        command.filter = null;
+        head.lazySet(h + 1);
+    }
+}
@@ -0,0 +1,274 @@
+package com.brackeen.javagamebook.sound;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+    The AudioMetrics class collects measurements of sound
+    playback: a histogram of the latency from a request to play
+    a sound to its first samples being written to a line, and the
+    number of times each line ran out of samples (an underrun).
+    <p>Each line is watched by a LineMonitor, which can also size
+    the line's buffer from its underruns when adaptive buffering
+    is on.
+    @see SoundManager#getMetrics()
+*/
+public class AudioMetrics {
+
+    /**
+        The number of latency histogram buckets. Bucket 0 counts
+        latencies under 1ms, and bucket i counts latencies from
+        2^(i-1) up to 2^i ms. The last bucket counts everything
+        longer.
+    */
+    public static final int NUM_LATENCY_BUCKETS = 12;
+
+    private AtomicLongArray latencies;
+    private AtomicLong latencyCount;
+    private AtomicLong totalLatency;
+    private AtomicLong maxLatency;
+    private AtomicLong underrunCount;
+    private ArrayList lines;
+    private volatile boolean adaptive;
+
+    /**
+        Creates a new AudioMetrics with no measurements.
+    */
+    public AudioMetrics() {
+        latencies = new AtomicLongArray(NUM_LATENCY_BUCKETS);
+        latencyCount = new AtomicLong();
+        totalLatency = new AtomicLong();
+        maxLatency = new AtomicLong();
+        underrunCount = new AtomicLong();
+        lines = new ArrayList();
+    }
+
+
+    /**
+        Records the latency, in nanoseconds, of a sound from its
+        request to its first samples being written.
+    */
+    public void recordLatency(long latency) {
+        long millis = latency / 1000000;
+        int bucket = 0;
+        while (bucket < NUM_LATENCY_BUCKETS - 1 &&
+            millis >= (1L << bucket))
+        {
+            bucket++;
+        }
+        latencies.incrementAndGet(bucket);
+        latencyCount.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        long max = maxLatency.get();
+        while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+            max = maxLatency.get();
+        }
+    }
+
+
+    /**
+        Records that a line ran out of samples.
+    */
+    void recordUnderrun() {
+        underrunCount.incrementAndGet();
+    }
+
+
+    /**
+        Gets the number of latencies recorded.
+    */
+    public long getLatencyCount() {
+        return latencyCount.get();
+    }
+
+
+    /**
+        Gets a copy of the latency histogram.
+    */
+    public long[] getLatencyHistogram() {
+        long[] histogram = new long[NUM_LATENCY_BUCKETS];
+        for (int i=0; i<histogram.length; i++) {
+            histogram[i] = latencies.get(i);
+        }
+        return histogram;
+    }
+
+
+    /**
+        Gets the upper limit, in milliseconds, of the latencies
+        counted in a histogram bucket. The last bucket has no
+        limit, and returns Long.MAX_VALUE.
+    */
+    public static long getLatencyBucketLimit(int bucket) {
+        return (bucket >= NUM_LATENCY_BUCKETS - 1) ?
+            Long.MAX_VALUE : (1L << bucket);
+    }
+
+
+    /**
+        Gets an upper limit, in milliseconds, of the specified
+        percentile (from 0 to 100) of latencies. For example,
+        getLatencyPercentile(99) returns a latency that at least
+        99% of sounds started within. Returns the maximum latency
+        if the percentile is in the last bucket, or 0 if no
+        latencies were recorded.
+    */
+    public float getLatencyPercentile(float percentile) {
+        long[] histogram = getLatencyHistogram();
+        long total = 0;
+        for (int i=0; i<histogram.length; i++) {
+            total += histogram[i];
+        }
+        long count = 0;
+        for (int i=0; i<histogram.length; i++) {
+            count += histogram[i];
+            if (count > 0 && count >= total * percentile / 100) {
+                if (i == histogram.length - 1) {
+                    break;
+                }
+                return Math.min(getLatencyBucketLimit(i),
+                    getMaxLatency());
+            }
+        }
+        return getMaxLatency();
+    }
+
+
+    /**
+        Gets the mean latency in milliseconds.
+    */
+    public float getMeanLatency() {
+        long count = latencyCount.get();
+        return (count == 0) ? 0 :
+            totalLatency.get() / 1000000f / count;
+    }
+
+
+    /**
+        Gets the longest latency in milliseconds.
+    */
+    public float getMaxLatency() {
+        return maxLatency.get() / 1000000f;
+    }
+
+
+    /**
+        Gets the number of underruns of every line, including
+        lines that are closed.
+    */
+    public long getUnderrunCount() {
+        return underrunCount.get();
+    }
+
+
+    /**
+        Turns adaptive buffering on or off for every line. When
+        on, a line's buffer grows after each underrun, and
+        slowly shrinks back while it plays without underruns.
+    */
+    public synchronized void setAdaptiveBuffering(boolean adaptive) {
+        this.adaptive = adaptive;
+        for (int i=0; i<lines.size(); i++) {
+            ((LineMonitor)lines.get(i)).setAdaptive(adaptive);
+        }
+    }
+
+
+    /**
+        Checks if adaptive buffering is on.
+    */
+    public boolean isAdaptiveBuffering() {
+        return adaptive;
+    }
+
+
+    /**
+        Gets the number of open lines.
+    */
+    public synchronized int getLineCount() {
+        return lines.size();
+    }
+
+
+    /**
+        Gets the name of an open line.
+    */
+    public synchronized String getLineName(int line) {
+        return ((LineMonitor)lines.get(line)).getName();
+    }
+
+
+    /**
+        Gets the number of underruns of an open line.
+    */
+    public synchronized long getLineUnderrunCount(int line) {
+        return ((LineMonitor)lines.get(line)).getUnderrunCount();
+    }
+
+
+    /**
+        Gets how much sound, in milliseconds, an open line keeps
+        buffered.
+    */
+    public synchronized int getLineBufferMillis(int line) {
+        return ((LineMonitor)lines.get(line)).getBufferMillis();
+    }
+
+
+    synchronized void addLine(LineMonitor line) {
+        line.setAdaptive(adaptive);
+        lines.add(line);
+    }
+
+
+    synchronized void removeLine(LineMonitor line) {
+        lines.remove(line);
+    }
+
+
+    /**
+        Clears the latency histogram and the underrun count.
+    */
+    public void reset() {
+        for (int i=0; i<NUM_LATENCY_BUCKETS; i++) {
+            latencies.set(i, 0);
+        }
+        latencyCount.set(0);
+        totalLatency.set(0);
+        maxLatency.set(0);
+        underrunCount.set(0);
+    }
+
+
+    /**
+        Returns a one-line summary of the measurements.
+    */
+    public synchronized String toString() {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("latency p50 ");
+        buffer.append(getLatencyPercentile(50));
+        buffer.append(" ms, p99 ");
+        buffer.append(getLatencyPercentile(99));
+        buffer.append(" ms, max ");
+        buffer.append(getMaxLatency());
+        buffer.append(" ms (");
+        buffer.append(getLatencyCount());
+        buffer.append(" sounds), underruns ");
+        buffer.append(getUnderrunCount());
+        for (int i=0; i<lines.size(); i++) {
+            LineMonitor line = (LineMonitor)lines.get(i);
+            buffer.append(i == 0 ? " [" : ", ");
+            buffer.append(line.getName());
+            buffer.append(": ");
+            buffer.append(line.getUnderrunCount());
+            buffer.append(" underruns, ");
+            buffer.append(line.getBufferMillis());
+            buffer.append(" ms buffer");
+        }
+        if (!lines.isEmpty()) {
+            buffer.append(']');
+        }
+        return buffer.toString();
+    }
+}
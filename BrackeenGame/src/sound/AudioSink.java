@@ -0,0 +1,26 @@
+package com.brackeen.javagamebook.sound;
+
+import java.io.IOException;
+
+/**
+    An AudioSink receives the samples a SoundMixer renders
+    offline, instead of a line playing them. Samples are in the
+    mixer's format.
+    @see SoundMixer#render(long)
+    @see WavFileSink
+    @see MemorySink
+*/
+public interface AudioSink {
+
+    /**
+        Writes a block of mixed samples.
+    */
+    public void write(byte[] buffer, int offset, int length)
+        throws IOException;
+
+
+    /**
+        Finishes writing. No more samples are written after this.
+    */
+    public void close() throws IOException;
+}
@@ -6,9 +6,16 @@ package com.brackeen.javagamebook.sound;
 */
 public class EchoFilter extends SoundFilter {
 
-    private short[] delayBuffer;
+    /**
+        The parameter for the decay rate.
+        @see #setParameter(int, float)
+    */
+    public static final int PARAM_DECAY = 0;
+
+    private float[] delayBuffer;
     private int delayBufferPos;
     private float decay;
+    private float initialDecay;
 
     /**
         Creates an EchoFilter with the specified number of delay
@@ -21,8 +28,19 @@ public class EchoFilter extends SoundFilter {
         half as loud as the source.
     */
     public EchoFilter(int numDelaySamples, float decay) {
-        delayBuffer = new short[numDelaySamples];
+        delayBuffer = new float[numDelaySamples];
         this.decay = decay;
+        initialDecay = decay;
+    }
+
+
+    /**
+        Sets the decay rate if the parameter is PARAM_DECAY.
+    */
+    public void setParameter(int parameter, float value) {
+        if (parameter == PARAM_DECAY) {
+            decay = value;
+        }
     }
 
 
@@ -44,9 +62,11 @@ public class EchoFilter extends SoundFilter {
 
 
     /**
-        Clears this EchoFilter's internal delay buffer.
+        Clears this EchoFilter's internal delay buffer and sets
+        the decay rate back to the one it was created with.
     */
     public void reset() {
+        decay = initialDecay;
         for (int i=0; i<delayBuffer.length; i++) {
             delayBuffer[i] = 0;
         }
@@ -60,18 +80,22 @@ public class EchoFilter extends SoundFilter {
         multipied by the decay rate. The result is then stored in
         the delay buffer, so multiple echoes are heard.
     */
-    public void filter(byte[] samples, int offset, int length) {
-
-        for (int i=offset; i<offset+length; i+=2) {
-            // update the sample
-            short oldSample = getSample(samples, i);
-            short newSample = (short)(oldSample + decay *
-                delayBuffer[delayBufferPos]);
-            setSample(samples, i, newSample);
-
-            // update the delay buffer
-            delayBuffer[delayBufferPos] = newSample;
-            delayBufferPos++;
+    public void filter(float[] samples, int offset, int length) {
+        float[] delayBuffer = this.delayBuffer;
+        int end = offset + length;
+        while (offset < end) {
+            // filter up to the end of the delay buffer in one go
+            int count = Math.min(end - offset,
+                delayBuffer.length - delayBufferPos);
+            for (int i=0; i<count; i++) {
+                // update the sample and the delay buffer
+                float newSample = samples[offset + i] + decay *
+                    delayBuffer[delayBufferPos + i];
+                samples[offset + i] = newSample;
+                delayBuffer[delayBufferPos + i] = newSample;
+            }
+            offset += count;
+            delayBufferPos += count;
             if (delayBufferPos == delayBuffer.length) {
                 delayBufferPos = 0;
             }
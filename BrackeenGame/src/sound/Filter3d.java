@@ -6,11 +6,17 @@ import com.brackeen.javagamebook.graphics.Sprite;
     The Filter3d class is a SoundFilter that creates a 3d sound
     effect. The sound is filtered so that it is quiter the farther
     away the sound source is from the listener.
-    <p>Possible ideas to extend this class:
-    <ul><li>pan the sound to the left and right speakers
-    </ul>
+    <p>This class is not thread-safe. It reads the Sprites'
+    positions on the audio thread while the game thread moves
+    them, and a Sprite in a PhysicsStore keeps its position at an
+    index that changes when other Sprites are removed, so the
+    filter can read another Sprite's position, or fail.
+    @deprecated Use SpatialAudio, which reads positions from
+    snapshots published by the game thread, and pans stereo
+    sound.
     @see FilteredSoundStream
 */
+@Deprecated
 public class Filter3d extends SoundFilter {
 
     // number of samples to shift when changing the volume.
@@ -23,8 +29,9 @@ public class Filter3d extends SoundFilter {
 
     /**
         Creates a new Filter3d object with the specified source
-        and listener Sprites. The Sprite's position can be
-        changed while this filter is running.
+        and listener Sprites. The Sprites must not move, or be
+        added to or removed from a PhysicsStore, while this
+        filter is running.
         <p> The maxDistance parameter is the maximum distance
         that the sound can be heard.
     */
@@ -42,7 +49,7 @@ public class Filter3d extends SoundFilter {
         Filters the sound so that it gets more quiet with
         distance.
     */
-    public void filter(byte[] samples, int offset, int length) {
+    public void filter(float[] samples, int offset, int length) {
 
         if (source == null || listener == null) {
             // nothing to filter - return
@@ -60,23 +67,17 @@ public class Filter3d extends SoundFilter {
             newVolume = 0;
         }
 
-        // set the volume of the sample
-        int shift = 0;
-        for (int i=offset; i<offset+length; i+=2) {
-
-            float volume = newVolume;
-
-            // shift from the last volume to the new volume
-            if (shift < NUM_SHIFTING_SAMPLES) {
-                volume = lastVolume + (newVolume - lastVolume) *
-                    shift / NUM_SHIFTING_SAMPLES;
-                shift++;
-            }
+        // shift from the last volume to the new volume
+        int numShifting = Math.min(length, NUM_SHIFTING_SAMPLES);
+        for (int shift=0; shift<numShifting; shift++) {
+            float volume = lastVolume + (newVolume - lastVolume) *
+                shift / NUM_SHIFTING_SAMPLES;
+            samples[offset + shift] *= volume;
+        }
 
-            // change the volume of the sample
-            short oldSample = getSample(samples, i);
-            short newSample = (short)(oldSample * volume);
-            setSample(samples, i, newSample);
+        // set the volume of the rest of the samples
+        for (int i=offset+numShifting; i<offset+length; i++) {
+            samples[i] *= newVolume;
         }
 
         lastVolume = newVolume;
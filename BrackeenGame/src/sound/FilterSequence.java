@@ -43,11 +43,23 @@ public class FilterSequence extends SoundFilter {
     }
 
 
+    /**
+        Tells each SoundFilter in this FilterSequence that the
+        stream is finished.
+    */
+    public void streamFinished() {
+        for (int i=0; i<filters.length; i++) {
+            filters[i].streamFinished();
+        }
+    }
+
+
     /**
         Filters the sound simple through each SoundFilter in this
-        FilterSequence.
+        FilterSequence. The samples are only converted to floats
+        once for the whole sequence.
     */
-    public void filter(byte[] samples, int offset, int length) {
+    public void filter(float[] samples, int offset, int length) {
         for (int i=0; i<filters.length; i++) {
             filters[i].filter(samples, offset, length);
         }
@@ -6,7 +6,9 @@ import java.io.IOException;
 
 /**
     The FilteredSoundStream class is a FilterInputStream that
-    applies a SoundFilter to the underlying input stream.
+    applies a SoundFilter to the underlying input stream. The
+    samples read are converted to floats once, filtered, and
+    converted back to bytes.
     @see SoundFilter
 */
 public class FilteredSoundStream extends FilterInputStream {
@@ -15,6 +17,8 @@ public class FilteredSoundStream extends FilterInputStream {
 
     private SoundFilter soundFilter;
     private int remainingSize;
+    private float[] floatSamples;
+    private boolean finished;
 
     /**
         Creates a new FilteredSoundStream object with the
@@ -39,7 +43,7 @@ public class FilteredSoundStream extends FilterInputStream {
         // read and filter the sound samples in the stream
         int bytesRead = super.read(samples, offset, length);
         if (bytesRead > 0) {
-            soundFilter.filter(samples, offset, bytesRead);
+            filter(samples, offset, bytesRead);
             return bytesRead;
         }
 
@@ -60,7 +64,7 @@ public class FilteredSoundStream extends FilterInputStream {
             }
 
             // filter the remaining bytes
-            soundFilter.filter(samples, offset, length);
+            filter(samples, offset, length);
             remainingSize-=length;
 
             // return
@@ -68,8 +72,44 @@ public class FilteredSoundStream extends FilterInputStream {
         }
         else {
             // end of stream
+            finish();
             return -1;
         }
     }
 
+
+    /**
+        Closes the stream. The filter is told the stream is
+        finished, if it wasn't already.
+    */
+    public void close() throws IOException {
+        super.close();
+        finish();
+    }
+
+
+    private void finish() {
+        if (!finished) {
+            finished = true;
+            soundFilter.streamFinished();
+        }
+    }
+
+
+    /**
+        Converts the samples to floats, runs them through the
+        filter, and converts them back.
+    */
+    private void filter(byte[] samples, int offset, int length) {
+        int numSamples = length / 2;
+        if (floatSamples == null || floatSamples.length < numSamples) {
+            floatSamples = new float[numSamples];
+        }
+        SoundFilter.toFloats(samples, offset, floatSamples, 0,
+            numSamples);
+        soundFilter.filter(floatSamples, 0, numSamples);
+        SoundFilter.toBytes(floatSamples, 0, samples, offset,
+            numSamples);
+    }
+
 }
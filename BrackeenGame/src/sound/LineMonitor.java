@@ -0,0 +1,154 @@
+package com.brackeen.javagamebook.sound;
+
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+    The LineMonitor class writes to a SourceDataLine and watches
+    it for underruns. The line is opened with room for the
+    maximum number of chunks, but only a target number of chunks
+    is kept queued, so the buffer size (and the latency) can
+    change without reopening the line.
+    <p>An underrun is detected before each write, while a sound
+    is playing: if the line's frame position has caught up with
+    the frames written, or the line's buffer is empty, the line
+    ran dry. With adaptive buffering, each underrun adds a chunk
+    to the target, and every SHRINK_CHUNKS chunks played without
+    an underrun removes one.
+*/
+class LineMonitor {
+
+    /**
+        The number of chunks written without an underrun before
+        an adaptive buffer shrinks.
+    */
+    public static final int SHRINK_CHUNKS = 1000;
+
+    private String name;
+    private SourceDataLine line;
+    private AudioMetrics metrics;
+    private int chunkSize;
+    private int minChunks;
+    private int maxChunks;
+    private long chunkNanos;
+    private volatile int targetChunks;
+    private volatile boolean adaptive;
+    private volatile long underrunCount;
+    private long framesWritten;
+    private boolean playing;
+    private int chunksSinceUnderrun;
+
+    /**
+        Creates a new LineMonitor for an open line, which must
+        have a buffer of at least maxChunks * chunkSize bytes.
+        The line is added to the AudioMetrics.
+    */
+    public LineMonitor(String name, SourceDataLine line,
+        int chunkSize, int minChunks, int targetChunks,
+        int maxChunks, AudioMetrics metrics)
+    {
+        this.name = name;
+        this.line = line;
+        this.chunkSize = chunkSize;
+        this.minChunks = minChunks;
+        this.targetChunks = targetChunks;
+        this.maxChunks = maxChunks;
+        this.metrics = metrics;
+        chunkNanos = Math.round(1000000000.0 * chunkSize /
+            line.getFormat().getFrameSize() /
+            line.getFormat().getSampleRate());
+        metrics.addLine(this);
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    public long getUnderrunCount() {
+        return underrunCount;
+    }
+
+
+    /**
+        Gets the amount of sound kept queued, in milliseconds.
+    */
+    public int getBufferMillis() {
+        return (int)(targetChunks * chunkNanos / 1000000);
+    }
+
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+
+    /**
+        Signals that nothing is playing, so the line draining
+        until the next write isn't an underrun.
+    */
+    public void idle() {
+        playing = false;
+    }
+
+
+    /**
+        Removes this line from the AudioMetrics. The line itself
+        isn't closed.
+    */
+    public void close() {
+        metrics.removeLine(this);
+    }
+
+
+    /**
+        Writes samples to the line, first waiting until no more
+        than the target number of chunks are queued. Returns
+        false if the thread was interrupted while waiting.
+    */
+    public boolean write(byte[] buffer, int offset, int length) {
+        if (playing) {
+            checkUnderrun();
+        }
+
+        // wait until there's room under the target
+        int target = targetChunks * chunkSize;
+        while (line.isOpen()) {
+            int queued = line.getBufferSize() - line.available();
+            if (queued <= 0 || queued + length <= target) {
+                break;
+            }
+            LockSupport.parkNanos(chunkNanos / 2);
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+        }
+
+        line.write(buffer, offset, length);
+        framesWritten += length / line.getFormat().getFrameSize();
+        playing = true;
+        return true;
+    }
+
+
+    private void checkUnderrun() {
+        if (line.getLongFramePosition() < framesWritten &&
+            line.available() < line.getBufferSize())
+        {
+            if (adaptive && ++chunksSinceUnderrun >= SHRINK_CHUNKS) {
+                chunksSinceUnderrun = 0;
+                if (targetChunks > minChunks) {
+                    targetChunks--;
+                }
+            }
+            return;
+        }
+        underrunCount++;
+        metrics.recordUnderrun();
+        chunksSinceUnderrun = 0;
+        if (adaptive && targetChunks < maxChunks) {
+            targetChunks++;
+        }
+    }
+}
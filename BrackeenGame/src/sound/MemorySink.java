@@ -0,0 +1,81 @@
+package com.brackeen.javagamebook.sound;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+    The MemorySink class is an AudioSink that keeps the rendered
+    samples in memory, for example to compare a mix against a
+    known good one.
+*/
+public class MemorySink implements AudioSink {
+
+    private AudioFormat format;
+    private ByteArrayOutputStream samples;
+
+    /**
+        Creates a new, empty MemorySink for samples in the
+        specified format.
+    */
+    public MemorySink(AudioFormat format) {
+        this.format = format;
+        samples = new ByteArrayOutputStream();
+    }
+
+
+    public synchronized void write(byte[] buffer, int offset,
+        int length)
+    {
+        samples.write(buffer, offset, length);
+    }
+
+
+    public void close() {
+        // do nothing
+    }
+
+
+    /**
+        Gets the format of the samples.
+    */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+
+    /**
+        Gets the number of sample frames written.
+    */
+    public synchronized long getFrameCount() {
+        return samples.size() / format.getFrameSize();
+    }
+
+
+    /**
+        Gets a copy of the samples written so far.
+    */
+    public synchronized byte[] getSamples() {
+        return samples.toByteArray();
+    }
+
+
+    /**
+        Gets an AudioInputStream of the samples written so far,
+        which can be written to a file with AudioSystem.write().
+    */
+    public AudioInputStream getAudioInputStream() {
+        byte[] bytes = getSamples();
+        return new AudioInputStream(new ByteArrayInputStream(bytes),
+            format, bytes.length / format.getFrameSize());
+    }
+
+
+    /**
+        Removes every sample written so far.
+    */
+    public synchronized void reset() {
+        samples.reset();
+    }
+}
@@ -1,8 +1,20 @@
 package com.brackeen.javagamebook.sound;
 
 import java.io.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.*;
 import javax.sound.midi.*;
+import com.brackeen.javagamebook.util.WorkStealingPool;
 
+/**
+    The MidiPlayer class plays midi sequences.
+    <p>Sequences loaded by file name are cached, so a sequence is
+    only read and parsed once. preloadSequence() parses a file on
+    a background thread (a virtual thread, if the runtime has
+    them) ahead of time, so playing it later, for example at a
+    level change, doesn't stall the game thread.
+*/
 public class MidiPlayer implements MetaEventListener {
 
     // Midi meta event
@@ -11,11 +23,15 @@ public class MidiPlayer implements MetaEventListener {
     private Sequencer sequencer;
     private boolean loop;
     private boolean paused;
+    // canonical path -> Future of the Sequence
+    private HashMap sequences;
+    private WorkStealingPool loader;
 
     /**
         Creates a new MidiPlayer object.
     */
     public MidiPlayer() {
+        sequences = new HashMap();
         try {
             sequencer = MidiSystem.getSequencer();
             sequencer.open();
@@ -28,20 +44,122 @@ public class MidiPlayer implements MetaEventListener {
 
 
     /**
-        Loads a sequence from the file system. Returns null if
-        an error occurs.
+        Gets a sequence from the file system. The sequence is
+        loaded and cached the first time; if it's being preloaded,
+        this method waits for it. Returns null if an error occurs.
     */
     public Sequence getSequence(String filename) {
-        try {
-            return getSequence(new FileInputStream(filename));
+        Future future;
+        FutureTask task = null;
+        String key = SoundCache.getKey(filename);
+        synchronized (sequences) {
+            future = (Future)sequences.get(key);
+            if (future == null) {
+                task = createLoadTask(filename);
+                future = task;
+                sequences.put(key, task);
+            }
         }
-        catch (IOException ex) {
-            ex.printStackTrace();
-            return null;
+        if (task != null) {
+            // load it on this thread
+            task.run();
+        }
+        return getResult(future, key);
+    }
+
+
+    /**
+        Starts loading a sequence on a background thread, if it
+        isn't cached yet. This method returns immediately.
+    */
+    public void preloadSequence(String filename) {
+        String key = SoundCache.getKey(filename);
+        synchronized (sequences) {
+            if (sequences.containsKey(key)) {
+                return;
+            }
+            FutureTask task = createLoadTask(filename);
+            sequences.put(key, task);
+            if (loader == null) {
+                loader = new WorkStealingPool("MidiPlayer-loader", 1,
+                    true);
+            }
+            loader.runTask(task);
+        }
+    }
+
+
+    /**
+        Removes a sequence from the cache. Returns true if it was
+        cached.
+    */
+    public boolean evictSequence(String filename) {
+        synchronized (sequences) {
+            return (sequences.remove(
+                SoundCache.getKey(filename)) != null);
+        }
+    }
+
+
+    /**
+        Checks if a sequence is cached and finished loading.
+    */
+    public boolean isSequenceLoaded(String filename) {
+        synchronized (sequences) {
+            Future future = (Future)sequences.get(
+                SoundCache.getKey(filename));
+            return (future != null && future.isDone());
         }
     }
 
 
+    private FutureTask createLoadTask(final String filename) {
+        return new FutureTask(new Callable() {
+            public Object call() throws IOException {
+                return getSequence(new FileInputStream(filename));
+            }
+        });
+    }
+
+
+    /**
+        Waits for a cached sequence. If it failed to load, it's
+        removed from the cache and null is returned.
+    */
+    private Sequence getResult(Future future, String key) {
+        Sequence sequence = null;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                sequence = (Sequence)future.get();
+                break;
+            }
+            catch (InterruptedException ex) {
+                interrupted = true;
+            }
+            catch (ExecutionException ex) {
+                ex.getCause().printStackTrace();
+                break;
+            }
+            catch (CancellationException ex) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (sequence == null) {
+            // try again next time
+            synchronized (sequences) {
+                if (sequences.get(key) == future) {
+                    sequences.remove(key);
+                }
+            }
+        }
+        return sequence;
+    }
+
+
     /**
         Loads a sequence from an input stream. Returns null if
         an error occurs.
@@ -84,6 +202,15 @@ public class MidiPlayer implements MetaEventListener {
     }
 
 
+    /**
+        Plays a cached sequence from the file system, optionally
+        looping. The sequence is loaded first if it isn't cached.
+    */
+    public void play(String filename, boolean loop) {
+        play(getSequence(filename), loop);
+    }
+
+
     /**
         This method is called by the sound system when a meta
         event occurs. In this case, when the end-of-track meta
@@ -111,12 +238,24 @@ public class MidiPlayer implements MetaEventListener {
 
 
     /**
-        Closes the sequencer.
+        Closes the sequencer and stops the loader thread.
     */
     public void close() {
          if (sequencer != null && sequencer.isOpen()) {
              sequencer.close();
          }
+         synchronized (sequences) {
+             if (loader != null) {
+                 loader.close();
+                 loader = null;
+             }
+             // wake up anyone waiting for a preload that won't run
+             Iterator i = sequences.values().iterator();
+             while (i.hasNext()) {
+                 ((Future)i.next()).cancel(false);
+             }
+             sequences.clear();
+         }
     }
 
 
@@ -1,8 +1,14 @@
 package com.brackeen.javagamebook.sound;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import com.brackeen.javagamebook.util.LoopingByteInputStream;
+
 /**
     The Sound class is a container for sound samples. The sound
     samples are format-agnostic and are stored as a byte array.
+    @see StreamingSound
 */
 public class Sound {
 
@@ -19,9 +25,33 @@ public class Sound {
 
     /**
         Returns this Sound's objects samples as a byte array.
+        Returns null if the samples aren't kept in memory.
     */
     public byte[] getSamples() {
         return samples;
     }
 
+
+    /**
+        Gets the number of bytes of samples this Sound keeps in
+        memory.
+    */
+    public int getMemorySize() {
+        return (samples == null) ? 0 : samples.length;
+    }
+
+
+    /**
+        Opens a stream of this Sound's samples, optionally
+        looping. A looping stream plays until it's closed.
+    */
+    public InputStream openStream(boolean loop) throws IOException {
+        if (loop) {
+            return new LoopingByteInputStream(samples);
+        }
+        else {
+            return new ByteArrayInputStream(samples);
+        }
+    }
+
 }
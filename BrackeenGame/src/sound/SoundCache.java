@@ -0,0 +1,162 @@
+package com.brackeen.javagamebook.sound;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+    The SoundCache class keeps decoded Sounds by file name, so a
+    sound file used in several places is only read and converted
+    once. File names are made canonical, so different paths to
+    the same file share one Sound.
+    <p>The cache holds at most a maximum number of bytes of
+    samples. When it's full, the least recently used Sounds are
+    evicted. An evicted Sound that is still playing isn't
+    affected; it is just read from its file again the next time
+    it's needed.
+    @see SoundManager#getSound(String)
+*/
+public class SoundCache {
+
+    /**
+        The default maximum size of the cache, in bytes.
+    */
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    // canonical path -> Sound, in least recently used order
+    private LinkedHashMap sounds;
+    private long size;
+    private long maxBytes;
+
+    /**
+        Creates a new SoundCache with the default maximum size.
+    */
+    public SoundCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+
+    /**
+        Creates a new SoundCache with the specified maximum
+        size, in bytes.
+    */
+    public SoundCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        sounds = new LinkedHashMap(16, .75f, true);
+    }
+
+
+    /**
+        Gets the key the specified file name is cached under.
+    */
+    public static String getKey(String filename) {
+        File file = new File(filename);
+        try {
+            return file.getCanonicalPath();
+        }
+        catch (IOException ex) {
+            return file.getAbsolutePath();
+        }
+    }
+
+
+    /**
+        Gets the cached Sound for the specified file name, or
+        null if it isn't cached.
+    */
+    public synchronized Sound get(String filename) {
+        return (Sound)sounds.get(getKey(filename));
+    }
+
+
+    /**
+        Adds a Sound for the specified file name. If a Sound is
+        already cached for the file, it's kept and returned
+        instead, so every caller ends up with the same Sound.
+        Otherwise the specified Sound is returned.
+    */
+    public synchronized Sound put(String filename, Sound sound) {
+        String key = getKey(filename);
+        Sound oldSound = (Sound)sounds.get(key);
+        if (oldSound != null) {
+            return oldSound;
+        }
+        sounds.put(key, sound);
+        size += sound.getMemorySize();
+        trim();
+        return sound;
+    }
+
+
+    /**
+        Removes the Sound for the specified file name from the
+        cache. Returns true if it was cached.
+    */
+    public synchronized boolean evict(String filename) {
+        Sound sound = (Sound)sounds.remove(getKey(filename));
+        if (sound != null) {
+            size -= sound.getMemorySize();
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+        Removes every Sound from the cache.
+    */
+    public synchronized void clear() {
+        sounds.clear();
+        size = 0;
+    }
+
+
+    /**
+        Gets the number of Sounds in the cache.
+    */
+    public synchronized int getCount() {
+        return sounds.size();
+    }
+
+
+    /**
+        Gets the number of bytes of samples in the cache.
+    */
+    public synchronized long getSize() {
+        return size;
+    }
+
+
+    /**
+        Gets the maximum size of the cache, in bytes.
+    */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+
+    /**
+        Sets the maximum size of the cache, in bytes. Sounds are
+        evicted if the cache is now too big.
+    */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+
+    /**
+        Evicts the least recently used Sounds until the cache
+        fits in its maximum size.
+    */
+    private void trim() {
+        Iterator i = sounds.entrySet().iterator();
+        while (size > maxBytes && i.hasNext()) {
+            Map.Entry entry = (Map.Entry)i.next();
+            size -= ((Sound)entry.getValue()).getMemorySize();
+            i.remove();
+        }
+    }
+}
@@ -5,13 +5,26 @@ package com.brackeen.javagamebook.sound;
     Since SoundFilters may use internal buffering of samples,
     a new SoundFilter object should be created for every sound
     played. However, SoundFilters can be reused after they are
-    finished by called the reset() method.
+    finished by called the reset() method. A SoundFilterPool
+    does this for you.
     <p>Assumes all samples are 16-bit, signed, little-endian
     format.
+    <p>Filters can work on bytes or on floats. The float version
+    gets each 16-bit sample as a float in the range of a short,
+    so a sum can go past the range without wrapping around; the
+    samples are only clipped when they are turned back into
+    bytes. FilteredSoundStream converts a block of samples to
+    floats once, and every filter works on the same floats.
+    Subclasses must override at least one of the two filter()
+    methods. The other one converts the samples and calls it.
     @see FilteredSoundStream
 */
 public abstract class SoundFilter{
 
+    // buffers for converting between bytes and floats
+    private byte[] byteBuffer;
+    private float[] floatBuffer;
+
     /**
         Resets this SoundFilter. Does nothing by default.
     */
@@ -20,6 +33,29 @@ public abstract class SoundFilter{
     }
 
 
+    /**
+        Changes one of this filter's parameters while it's
+        playing. Each filter defines its own parameter numbers;
+        unknown parameters are ignored. Does nothing by default.
+        <p>In mixer mode, use SoundManager.setFilterParameter()
+        so the change is made on the audio thread.
+    */
+    public void setParameter(int parameter, float value) {
+        // do nothing
+    }
+
+
+    /**
+        Called once when the stream this filter is applied to
+        ends or is closed. Does nothing by default; filters that
+        hold on to resources while playing should override this
+        to let them go.
+    */
+    public void streamFinished() {
+        // do nothing
+    }
+
+
     /**
         Gets the remaining size, in bytes, that this filter
         plays after the sound is finished. An example would
@@ -42,11 +78,75 @@ public abstract class SoundFilter{
 
     /**
         Filters an array of samples. Samples should be in
-        16-bit, signed, little-endian format. This method
-        should be implemented by subclasses.
+        16-bit, signed, little-endian format. The offset and
+        length are in bytes.
+        <p>By default, converts the samples to floats and calls
+        filter(float[], int, int).
     */
-    public abstract void filter(
-        byte[] samples, int offset, int length);
+    public void filter(byte[] samples, int offset, int length) {
+        int numSamples = length / 2;
+        if (floatBuffer == null || floatBuffer.length < numSamples) {
+            floatBuffer = new float[numSamples];
+        }
+        toFloats(samples, offset, floatBuffer, 0, numSamples);
+        filter(floatBuffer, 0, numSamples);
+        toBytes(floatBuffer, 0, samples, offset, numSamples);
+    }
+
+
+    /**
+        Filters an array of samples, each in the range of a
+        16-bit signed sample, but not clipped to it. The offset
+        and length are in samples.
+        <p>By default, converts the samples to bytes and calls
+        filter(byte[], int, int).
+    */
+    public void filter(float[] samples, int offset, int length) {
+        int numBytes = length * 2;
+        if (byteBuffer == null || byteBuffer.length < numBytes) {
+            byteBuffer = new byte[numBytes];
+        }
+        toBytes(samples, offset, byteBuffer, 0, length);
+        filter(byteBuffer, 0, numBytes);
+        toFloats(byteBuffer, 0, samples, offset, length);
+    }
+
+
+    /**
+        Converts 16-bit, signed, little-endian samples to floats.
+    */
+    public static void toFloats(byte[] src, int srcOffset,
+        float[] dest, int destOffset, int numSamples)
+    {
+        for (int i=0; i<numSamples; i++) {
+            int position = srcOffset + i * 2;
+            dest[destOffset + i] = (short)(
+                ((src[position+1] & 0xff) << 8) |
+                (src[position] & 0xff));
+        }
+    }
+
+
+    /**
+        Converts floats to 16-bit, signed, little-endian samples,
+        clipping them to the range of a short.
+    */
+    public static void toBytes(float[] src, int srcOffset,
+        byte[] dest, int destOffset, int numSamples)
+    {
+        for (int i=0; i<numSamples; i++) {
+            int sample = (int)src[srcOffset + i];
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            }
+            else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            int position = destOffset + i * 2;
+            dest[position] = (byte)sample;
+            dest[position+1] = (byte)(sample >> 8);
+        }
+    }
 
 
     /**
@@ -0,0 +1,175 @@
+package com.brackeen.javagamebook.sound;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+    The SoundFilterPool class reuses SoundFilters, so playing an
+    effect doesn't allocate a new filter (and its buffers) every
+    time. Filters are kept by a key that describes the filter's
+    type and parameters; filters with the same key must be
+    interchangeable.
+    <p>acquire() returns a filter that is reset and ready to use.
+    When the FilteredSoundStream it's used in ends or is closed,
+    the filter goes back to the pool by itself.
+    <p>Keep the key and Factory objects in fields, so acquiring
+    a filter doesn't allocate anything once the pool has a free
+    filter.
+*/
+public class SoundFilterPool {
+
+    /**
+        Creates the filters for a key when the pool has none
+        free.
+    */
+    public interface Factory {
+        public SoundFilter createFilter();
+    }
+
+    // key -> ArrayList of free PooledFilters
+    private HashMap freeFilters;
+    private int createdCount;
+
+    /**
+        Creates a new, empty SoundFilterPool.
+    */
+    public SoundFilterPool() {
+        freeFilters = new HashMap();
+    }
+
+
+    /**
+        Gets a filter for the specified key, creating one with
+        the Factory if none is free. The filter is returned to
+        the pool when its stream is finished, so don't keep it
+        after that.
+    */
+    public SoundFilter acquire(Object key, Factory factory) {
+        PooledFilter filter = null;
+        synchronized (this) {
+            ArrayList free = (ArrayList)freeFilters.get(key);
+            if (free != null && !free.isEmpty()) {
+                filter = (PooledFilter)free.remove(free.size() - 1);
+            }
+            else {
+                createdCount++;
+            }
+        }
+        if (filter == null) {
+            filter = new PooledFilter(key, factory.createFilter());
+        }
+        filter.reset();
+        filter.inUse = true;
+        return filter;
+    }
+
+
+    /**
+        Gets the number of filters this pool has created.
+    */
+    public synchronized int getCreatedCount() {
+        return createdCount;
+    }
+
+
+    /**
+        Gets the number of free filters for the specified key.
+    */
+    public synchronized int getFreeCount(Object key) {
+        ArrayList free = (ArrayList)freeFilters.get(key);
+        return (free == null) ? 0 : free.size();
+    }
+
+
+    /**
+        Removes every free filter from the pool.
+    */
+    public synchronized void clear() {
+        freeFilters.clear();
+    }
+
+
+    private synchronized void release(PooledFilter filter) {
+        ArrayList free = (ArrayList)freeFilters.get(filter.key);
+        if (free == null) {
+            free = new ArrayList();
+            freeFilters.put(filter.key, free);
+        }
+        free.add(filter);
+    }
+
+
+    /**
+        A key made of a filter's class and its parameters.
+    */
+    public static class Key {
+
+        private Class type;
+        private float[] params;
+
+        public Key(Class type, float[] params) {
+            this.type = type;
+            this.params = params.clone();
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key key = (Key)obj;
+            return type.equals(key.type) &&
+                Arrays.equals(params, key.params);
+        }
+
+        public int hashCode() {
+            return type.hashCode() * 31 + Arrays.hashCode(params);
+        }
+    }
+
+
+    /**
+        A SoundFilter that passes everything on to a pooled
+        filter, and returns itself to the pool when its stream is
+        finished.
+    */
+    private class PooledFilter extends SoundFilter {
+
+        private Object key;
+        private SoundFilter filter;
+        private boolean inUse;
+
+        public PooledFilter(Object key, SoundFilter filter) {
+            this.key = key;
+            this.filter = filter;
+        }
+
+        public void reset() {
+            filter.reset();
+        }
+
+        public int getRemainingSize() {
+            return filter.getRemainingSize();
+        }
+
+        public void filter(byte[] samples, int offset, int length) {
+            filter.filter(samples, offset, length);
+        }
+
+        public void filter(float[] samples, int offset, int length) {
+            filter.filter(samples, offset, length);
+        }
+
+        public void setParameter(int parameter, float value) {
+            filter.setParameter(parameter, value);
+        }
+
+        public void streamFinished() {
+            if (inUse) {
+                inUse = false;
+                filter.streamFinished();
+                release(this);
+            }
+        }
+    }
+}
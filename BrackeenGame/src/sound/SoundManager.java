@@ -1,31 +1,85 @@
 package com.brackeen.javagamebook.sound;
 
 import java.io.*;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.sound.sampled.*;
 import javax.sound.midi.*;
-import com.brackeen.javagamebook.util.ThreadPool;
-import com.brackeen.javagamebook.util.LoopingByteInputStream;
+import com.brackeen.javagamebook.util.WorkStealingPool;
 
 
 /**
     The SoundManager class manages sound playback. The
-    SoundManager is a ThreadPool, with each thread playing back
+    SoundManager is a WorkStealingPool, with each thread playing back
     one sound at a time. This allows the SoundManager to
     easily limit the number of simultaneous sounds being played.
+    <p>In mixer mode, the pool has no threads. Instead, one
+    SoundMixer thread mixes every sound into a single line, so
+    the number of sounds is limited by CPU time instead of by the
+    number of lines the audio device has.
+    <p>A sound that can't start within the deadline (500ms by
+    default) of the request to play is dropped, so sounds don't
+    pile up and play long after the event they belong to. In
+    mixer mode, sounds also have a priority, and a new sound can
+    steal the voice of a sound with the same or lower priority.
+    <p>In mixer mode, play, stop, pause, gain, pan and filter
+    parameter changes are sent to the mixer thread through a
+    lock-free command queue, so the game thread never waits on
+    the audio thread. Call these methods from the game thread
+    only.
+    <p>getMetrics() measures the latency from each request to
+    play to the sound's first samples being written, and counts
+    line underruns. Lines keep a target amount of sound buffered,
+    which can adapt to the underruns measured.
+    <p>A SoundManager created with an AudioSink renders offline
+    instead of playing: it needs no sound card, and the game
+    drives it by calling render() every tick.
     <p>Possible ideas to extend this class:<ul>
     <li>add a setMasterVolume() method, which uses Controls to
         set the volume for each line.
-    <li>don't play a sound if more than, say, 500ms has passed
-        since the request to play
     </ul>
 */
-public class SoundManager extends ThreadPool {
+public class SoundManager extends WorkStealingPool {
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 5;
+    public static final int PRIORITY_HIGH = 10;
+
+    /**
+        The default deadline, in milliseconds.
+    */
+    public static final long DEFAULT_DEADLINE = 500;
+
+    /**
+        The amount of sound, in milliseconds, each pool thread
+        reads and writes at a time.
+    */
+    public static final int CHUNK_MILLIS = 25;
+
+    // chunks buffered in each line: at least, at first, and at most
+    private static final int MIN_LINE_CHUNKS = 2;
+    private static final int LINE_CHUNKS = 4;
+    private static final int MAX_LINE_CHUNKS = 16;
 
     private AudioFormat playbackFormat;
     private ThreadLocal localLine;
     private ThreadLocal localBuffer;
+    private ThreadLocal localMonitor;
+    private AudioMetrics metrics;
+    private AtomicInteger activeCount;
+    private Timer metricsTimer;
+    private WorkStealingPool soundLoader;
     private Object pausedLock;
-    private boolean paused;
+    private volatile boolean paused;
+    private SoundMixer mixer;
+    private volatile long deadline;
+    private AtomicLong droppedCount;
+    private SoundCache soundCache;
+    private SoundFilterPool filterPool;
 
     /**
         Creates a new SoundManager using the maximum number of
@@ -44,12 +98,40 @@ public class SoundManager extends ThreadPool {
     public SoundManager(AudioFormat playbackFormat,
         int maxSimultaneousSounds)
     {
-        super(Math.min(maxSimultaneousSounds,
+        this(playbackFormat, maxSimultaneousSounds, false);
+    }
+
+
+    /**
+        Creates a new SoundManager with the specified maximum
+        number of simultaneous sounds. If mix is true and the
+        format can be mixed, all sounds are mixed into one line
+        by a SoundMixer, and the maximum isn't limited by the
+        number of lines available.
+    */
+    public SoundManager(AudioFormat playbackFormat,
+        int maxSimultaneousSounds, boolean mix)
+    {
+        super((mix && SoundMixer.isSupported(playbackFormat)) ? 0 :
+            Math.min(maxSimultaneousSounds,
             getMaxSimultaneousSounds(playbackFormat)));
-        this.playbackFormat = playbackFormat;
-        localLine = new ThreadLocal();
-        localBuffer = new ThreadLocal();
-        pausedLock = new Object();
+        init(playbackFormat);
+        if (mix && SoundMixer.isSupported(playbackFormat)) {
+            try {
+                mixer = new SoundMixer(playbackFormat,
+                    maxSimultaneousSounds);
+                mixer.setDeadline(deadline);
+                mixer.start();
+            }
+            catch (LineUnavailableException ex) {
+                // the line is unavailable - no sounds will play
+                ex.printStackTrace();
+            }
+            catch (IllegalArgumentException ex) {
+                // no line supports the format - no sounds will play
+                ex.printStackTrace();
+            }
+        }
         // notify threads in pool it's ok to start
         synchronized (this) {
             notifyAll();
@@ -57,6 +139,39 @@ public class SoundManager extends ThreadPool {
     }
 
 
+    /**
+        Creates a new SoundManager that mixes up to the specified
+        number of simultaneous sounds offline, writing the mix to
+        the sink as render() is called.
+        @throws IllegalArgumentException if the format can't be
+        mixed.
+    */
+    public SoundManager(AudioFormat playbackFormat,
+        int maxSimultaneousSounds, AudioSink sink)
+    {
+        super(0);
+        init(playbackFormat);
+        mixer = new SoundMixer(playbackFormat, maxSimultaneousSounds,
+            sink);
+        mixer.start();
+    }
+
+
+    private void init(AudioFormat playbackFormat) {
+        this.playbackFormat = playbackFormat;
+        localLine = new ThreadLocal();
+        localBuffer = new ThreadLocal();
+        localMonitor = new ThreadLocal();
+        metrics = new AudioMetrics();
+        activeCount = new AtomicInteger();
+        pausedLock = new Object();
+        deadline = DEFAULT_DEADLINE;
+        droppedCount = new AtomicLong();
+        soundCache = new SoundCache();
+        filterPool = new SoundFilterPool();
+    }
+
+
     /**
         Gets the maximum number of simultaneous sounds with the
         specified AudioFormat that the default mixer can play.
@@ -77,11 +192,24 @@ public class SoundManager extends ThreadPool {
     protected void cleanUp() {
         // signal to unpause
         setPaused(false);
+        stopMetricsLog();
+        synchronized (this) {
+            if (soundLoader != null) {
+                soundLoader.close();
+                soundLoader = null;
+            }
+        }
 
-        // close the mixer (stops any running sounds)
-        Mixer mixer = AudioSystem.getMixer(null);
-        if (mixer.isOpen()) {
+        if (mixer != null) {
+            // close the mixer's line (stops any running sounds)
             mixer.close();
+            return;
+        }
+
+        // close the mixer (stops any running sounds)
+        Mixer audioMixer = AudioSystem.getMixer(null);
+        if (audioMixer.isOpen()) {
+            audioMixer.close();
         }
     }
 
@@ -111,6 +239,9 @@ public class SoundManager extends ThreadPool {
                 }
             }
         }
+        if (mixer != null) {
+            mixer.setPaused(paused);
+        }
     }
 
 
@@ -123,11 +254,331 @@ public class SoundManager extends ThreadPool {
 
 
     /**
-        Loads a Sound from the file system. Returns null if an
+        Sets how long, in milliseconds, a sound can wait to
+        start playing before it's dropped. A deadline of 0 or
+        less never drops a sound.
+    */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+        if (mixer != null) {
+            mixer.setDeadline(deadline);
+        }
+    }
+
+
+    /**
+        Gets the deadline, in milliseconds.
+    */
+    public long getDeadline() {
+        return deadline;
+    }
+
+
+    /**
+        Sets which voice is stolen in mixer mode when all voices
+        are in use, either SoundMixer.STEAL_QUIETEST or
+        SoundMixer.STEAL_OLDEST.
+    */
+    public void setStealPolicy(int stealPolicy) {
+        if (mixer != null) {
+            mixer.setStealPolicy(stealPolicy);
+        }
+    }
+
+
+    /**
+        Stops a sound returned by one of the play() methods. The
+        stream is closed.
+    */
+    public void stop(InputStream is) {
+        if (mixer != null) {
+            mixer.stop(is);
+        }
+        else {
+            // the SoundPlayer stops at the end of the stream
+            try {
+                is.close();
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+        Sets the gain of a playing sound, where 1 is the sound's
+        own volume. Only used in mixer mode.
+    */
+    public void setGain(InputStream is, float gain) {
+        if (mixer != null) {
+            mixer.setGain(is, gain);
+        }
+    }
+
+
+    /**
+        Sets the pan of a playing sound, from -1 (left) to 1
+        (right). Only used in mixer mode with a stereo format.
+    */
+    public void setPan(InputStream is, float pan) {
+        if (mixer != null) {
+            mixer.setPan(is, pan);
+        }
+    }
+
+
+    /**
+        Sets a parameter of a SoundFilter that is playing. In
+        mixer mode, the change is made on the mixer thread between
+        buffers; otherwise it's made right away.
+        @see SoundFilter#setParameter(int, float)
+    */
+    public void setFilterParameter(SoundFilter filter, int parameter,
+        float value)
+    {
+        if (mixer != null) {
+            mixer.setFilterParameter(filter, parameter, value);
+        }
+        else {
+            filter.setParameter(parameter, value);
+        }
+    }
+
+
+    /**
+        Gets the number of sounds dropped because they missed
+        the deadline or had no voice to play on.
+    */
+    public long getDroppedCount() {
+        long count = droppedCount.get();
+        if (mixer != null) {
+            count += mixer.getDroppedCount();
+        }
+        return count;
+    }
+
+
+    /**
+        Gets the number of sounds stopped to make room for a
+        sound with the same or higher priority.
+    */
+    public long getStolenCount() {
+        return (mixer == null) ? 0 : mixer.getStolenCount();
+    }
+
+
+    /**
+        Gets the latency and underrun measurements.
+    */
+    public AudioMetrics getMetrics() {
+        return (mixer != null) ? mixer.getMetrics() : metrics;
+    }
+
+
+    /**
+        Gets the number of sounds playing.
+    */
+    public int getActiveVoiceCount() {
+        return (mixer != null) ? mixer.getVoiceCount() :
+            activeCount.get();
+    }
+
+
+    /**
+        Gets the number of requests waiting: sounds waiting for
+        a pool thread, or commands waiting for the mixer thread.
+    */
+    public int getQueueDepth() {
+        return (mixer != null) ? mixer.getCommandCount() :
+            getTaskCount();
+    }
+
+
+    /**
+        Turns adaptive line buffering on or off.
+        @see AudioMetrics#setAdaptiveBuffering(boolean)
+    */
+    public void setAdaptiveBuffering(boolean adaptive) {
+        getMetrics().setAdaptiveBuffering(adaptive);
+    }
+
+
+    /**
+        Returns a one-line summary of the voices, queue depth,
+        latency and underruns.
+    */
+    public String getMetricsReport() {
+        return "voices " + getActiveVoiceCount() + ", queued " +
+            getQueueDepth() + ", dropped " + getDroppedCount() +
+            ", " + getMetrics();
+    }
+
+
+    /**
+        Prints the metrics report to the specified stream every
+        period milliseconds, on a daemon thread, until
+        stopMetricsLog() is called or this SoundManager is closed.
+    */
+    public synchronized void startMetricsLog(long period,
+        final PrintStream out)
+    {
+        stopMetricsLog();
+        metricsTimer = new Timer("SoundManager-metrics", true);
+        metricsTimer.schedule(new TimerTask() {
+            public void run() {
+                out.println("audio: " + getMetricsReport());
+            }
+        }, period, period);
+    }
+
+
+    /**
+        Stops printing the metrics report.
+    */
+    public synchronized void stopMetricsLog() {
+        if (metricsTimer != null) {
+            metricsTimer.cancel();
+            metricsTimer = null;
+        }
+    }
+
+
+    /**
+        Gets the format sounds are played in.
+    */
+    public AudioFormat getPlaybackFormat() {
+        return playbackFormat;
+    }
+
+
+    /**
+        Returns true if sounds are mixed into one line by a
+        SoundMixer.
+    */
+    public boolean isMixing() {
+        return (mixer != null);
+    }
+
+
+    /**
+        Returns true if sounds are rendered offline to an
+        AudioSink.
+    */
+    public boolean isOffline() {
+        return (mixer != null && mixer.isOffline());
+    }
+
+
+    /**
+        Renders the specified amount of time of sound when
+        rendering offline. Does nothing otherwise. Call from the
+        game thread once per tick.
+    */
+    public void render(long elapsedTime) {
+        if (isOffline()) {
+            mixer.render(elapsedTime);
+        }
+    }
+
+
+    /**
+        Gets the SoundCache that holds the Sounds loaded from
+        the file system.
+    */
+    public SoundCache getSoundCache() {
+        return soundCache;
+    }
+
+
+    /**
+        Gets the SoundFilterPool for reusing SoundFilters between
+        sounds.
+    */
+    public SoundFilterPool getFilterPool() {
+        return filterPool;
+    }
+
+
+    /**
+        Loads a Sound from the file system, or gets it from the
+        SoundCache if it's already loaded. Returns null if an
         error occurs.
     */
     public Sound getSound(String filename) {
-        return getSound(getAudioInputStream(filename));
+        Sound sound = soundCache.get(filename);
+        if (sound == null) {
+            sound = getSound(getAudioInputStream(filename));
+            if (sound != null) {
+                sound = soundCache.put(filename, sound);
+            }
+        }
+        return sound;
+    }
+
+
+    /**
+        Opens a WAV file as a StreamingSound, which reads the
+        file while it plays instead of loading it into memory.
+        Use this for long sounds like music or ambience. Returns
+        null if an error occurs.
+    */
+    public Sound getStreamingSound(String filename) {
+        try {
+            return new StreamingSound(new File(filename),
+                playbackFormat);
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+
+    /**
+        Starts loading a sound file into the SoundCache on a
+        background thread (a virtual thread, if the runtime has
+        them). Returns a CompletableFuture of the Sound.
+    */
+    public CompletableFuture preloadSound(final String filename) {
+        WorkStealingPool loader;
+        synchronized (this) {
+            if (soundLoader == null) {
+                soundLoader = new WorkStealingPool("SoundManager-loader",
+                    Runtime.getRuntime().availableProcessors(), true);
+            }
+            loader = soundLoader;
+        }
+        return loader.submit(new Callable() {
+            public Object call() {
+                return getSound(filename);
+            }
+        });
+    }
+
+
+    /**
+        Loads the specified sound files into the SoundCache, so
+        later calls to getSound() return right away. The files
+        are loaded at the same time, and this method returns when
+        they are all loaded.
+    */
+    public void preloadSounds(String[] filenames) {
+        CompletableFuture[] futures =
+            new CompletableFuture[filenames.length];
+        for (int i=0; i<filenames.length; i++) {
+            futures[i] = preloadSound(filenames[i]);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+
+    /**
+        Removes the Sound for the specified file from the
+        SoundCache. Returns true if it was cached.
+    */
+    public boolean evictSound(String filename) {
+        return soundCache.evict(filename);
     }
 
 
@@ -231,17 +682,25 @@ public class SoundManager extends ThreadPool {
     public InputStream play(Sound sound, SoundFilter filter,
         boolean loop)
     {
-        InputStream is;
+        return play(sound, filter, loop, PRIORITY_NORMAL);
+    }
+
+
+    /**
+        Plays a sound with an optional SoundFilter, optionally
+        looping, with the specified priority. This method
+        returns immediately.
+    */
+    public InputStream play(Sound sound, SoundFilter filter,
+        boolean loop, int priority)
+    {
         if (sound != null) {
-            if (loop) {
-                is = new LoopingByteInputStream(
-                    sound.getSamples());
+            try {
+                return play(sound.openStream(loop), filter, priority);
             }
-            else {
-                is = new ByteArrayInputStream(sound.getSamples());
+            catch (IOException ex) {
+                ex.printStackTrace();
             }
-
-            return play(is, filter);
         }
         return null;
     }
@@ -261,18 +720,55 @@ public class SoundManager extends ThreadPool {
         sound filter. This method returns immediately.
     */
     public InputStream play(InputStream is, SoundFilter filter) {
+        return play(is, filter, PRIORITY_NORMAL);
+    }
+
+
+    /**
+        Plays a sound from an InputStream with an optional
+        sound filter and the specified priority. This method
+        returns immediately. Priorities are only used in mixer
+        mode. Returns null, and closes the stream, if the mixer
+        can't take the sound.
+    */
+    public InputStream play(InputStream is, SoundFilter filter,
+        int priority)
+    {
         if (is != null) {
             if (filter != null) {
                 is = new FilteredSoundStream(is, filter);
             }
-            runTask(new SoundPlayer(is));
+            if (mixer != null) {
+                if (!mixer.play(is, priority)) {
+                    // lets the stream's filters and any open file go
+                    closeStream(is);
+                    return null;
+                }
+            }
+            else {
+                runTask(new SoundPlayer(is, System.nanoTime()));
+            }
         }
         return is;
     }
 
 
     /**
-        Signals that a PooledThread has started. Creates the
+        Closes a sound's stream, which calls streamFinished() on
+        its filters.
+    */
+    private static void closeStream(InputStream is) {
+        try {
+            is.close();
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+
+    /**
+        Signals that a pool thread has started. Creates the
         Thread's line and buffer.
     */
     protected void threadStarted() {
@@ -284,10 +780,12 @@ public class SoundManager extends ThreadPool {
             catch (InterruptedException ex) { }
         }
 
-        // use a short, 100ms (1/10th sec) buffer for filters that
-        // change in real-time
+        // use short chunks for filters that change in real-time.
+        // The line keeps LINE_CHUNKS (100ms) buffered, but has
+        // room for more if adaptive buffering needs it.
         int bufferSize = playbackFormat.getFrameSize() *
-            Math.round(playbackFormat.getSampleRate() / 10);
+            Math.round(playbackFormat.getSampleRate() *
+            CHUNK_MILLIS / 1000);
 
         // create, open, and start the line
         SourceDataLine line;
@@ -295,7 +793,7 @@ public class SoundManager extends ThreadPool {
             SourceDataLine.class, playbackFormat);
         try {
             line = (SourceDataLine)AudioSystem.getLine(lineInfo);
-            line.open(playbackFormat, bufferSize);
+            line.open(playbackFormat, bufferSize * MAX_LINE_CHUNKS);
         }
         catch (LineUnavailableException ex) {
             // the line is unavailable - signal to end this thread
@@ -311,14 +809,21 @@ public class SoundManager extends ThreadPool {
         // set this thread's locals
         localLine.set(line);
         localBuffer.set(buffer);
+        localMonitor.set(new LineMonitor(
+            Thread.currentThread().getName(), line, bufferSize,
+            MIN_LINE_CHUNKS, LINE_CHUNKS, MAX_LINE_CHUNKS, metrics));
     }
 
 
     /**
-        Signals that a PooledThread has stopped. Drains and
+        Signals that a pool thread has stopped. Drains and
         closes the Thread's Line.
     */
     protected void threadStopped() {
+        LineMonitor monitor = (LineMonitor)localMonitor.get();
+        if (monitor != null) {
+            monitor.close();
+        }
         SourceDataLine line = (SourceDataLine)localLine.get();
         if (line != null) {
             line.drain();
@@ -328,41 +833,73 @@ public class SoundManager extends ThreadPool {
 
 
     /**
-        The SoundPlayer class is a task for the PooledThreads to
+        The SoundPlayer class is a task for the pool threads to
         run. It receives the threads's Line and byte buffer from
         the ThreadLocal variables and plays a sound from an
         InputStream.
-        <p>This class only works when called from a PooledThread.
+        <p>This class only works when called from a pool thread.
     */
     protected class SoundPlayer implements Runnable {
 
         private InputStream source;
+        private long requestTime;
 
         public SoundPlayer(InputStream source) {
+            this(source, System.nanoTime());
+        }
+
+        public SoundPlayer(InputStream source, long requestTime) {
             this.source = source;
+            this.requestTime = requestTime;
         }
 
         public void run() {
-            // get line and buffer from ThreadLocals
-            SourceDataLine line = (SourceDataLine)localLine.get();
+            try {
+                playSound();
+            }
+            finally {
+                // lets the stream's filters and any open file go,
+                // even if the sound was dropped or interrupted
+                closeStream(source);
+            }
+        }
+
+        private void playSound() {
+            // drop the sound if it waited too long to start
+            long deadline = SoundManager.this.deadline;
+            if (deadline > 0 && System.nanoTime() - requestTime >
+                deadline * 1000000)
+            {
+                droppedCount.incrementAndGet();
+                return;
+            }
+
+            // get line, buffer, and monitor from ThreadLocals
             byte[] buffer = (byte[])localBuffer.get();
-            if (line == null || buffer == null) {
+            LineMonitor monitor = (LineMonitor)localMonitor.get();
+            if (monitor == null || buffer == null) {
                 // the line is unavailable
                 return;
             }
 
             // copy data to the line
+            activeCount.incrementAndGet();
+            boolean started = false;
             try {
                 int numBytesRead = 0;
                 while (numBytesRead != -1) {
-                    // if paused, wait until unpaused
-                    synchronized (pausedLock) {
-                        if (paused) {
-                            try {
-                                pausedLock.wait();
-                            }
-                            catch (InterruptedException ex) {
-                                return;
+                    // if paused, wait until unpaused. The lock is
+                    // only taken while paused.
+                    if (paused) {
+                        monitor.idle();
+                        synchronized (pausedLock) {
+                            while (paused) {
+                                try {
+                                    pausedLock.wait();
+                                }
+                                catch (InterruptedException ex) {
+                                    return;
+                                }
                             }
                         }
                     }
@@ -370,13 +907,25 @@ public class SoundManager extends ThreadPool {
                     numBytesRead =
                         source.read(buffer, 0, buffer.length);
                     if (numBytesRead != -1) {
-                        line.write(buffer, 0, numBytesRead);
+                        if (!monitor.write(buffer, 0, numBytesRead)) {
+                            // interrupted
+                            return;
+                        }
+                        if (!started) {
+                            started = true;
+                            metrics.recordLatency(
+                                System.nanoTime() - requestTime);
+                        }
                     }
                 }
             }
             catch (IOException ex) {
                 ex.printStackTrace();
             }
+            finally {
+                monitor.idle();
+                activeCount.decrementAndGet();
+            }
 
         }
     }
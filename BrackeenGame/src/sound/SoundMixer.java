@@ -0,0 +1,790 @@
+package com.brackeen.javagamebook.sound;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.sampled.*;
+
+/**
+    The SoundMixer class plays any number of sounds through one
+    SourceDataLine. A single thread reads a short buffer from
+    each playing sound (a voice), adds the samples together, clips
+    the sum to the 16-bit range, and writes the result to the
+    line.
+    <p>Each voice has a priority. A request that waited longer
+    than the deadline before it could start is dropped. When all
+    voices are in use, a new voice steals the place of a voice
+    with the same or lower priority - the quietest one, or the
+    oldest one, depending on the steal policy. If there is no
+    such voice, the new one is dropped.
+    <p>The game thread controls the mixer only through an
+    AudioCommandQueue: play, stop, pause, gain, pan and filter
+    parameter changes are queued without locks and applied by the
+    mixer thread before it mixes each buffer. Only one thread (the
+    game thread) should call the methods that send commands.
+    <p>A SoundMixer created with an AudioSink renders offline:
+    there is no line and no mixer thread. Instead, the game
+    thread calls render() each tick, which mixes that much time
+    of sound as fast as it can and writes it to the sink. This
+    works without a sound card, and the output only depends on
+    the commands sent and the elapsed times rendered.
+    <p>Only signed, 16-bit PCM formats can be mixed.
+    @see SoundManager
+*/
+public class SoundMixer implements Runnable {
+
+    /**
+        The amount of sound mixed at a time, in milliseconds.
+    */
+    public static final int MIX_MILLIS = 10;
+
+    /**
+        The number of mixed buffers kept queued in the line. The
+        latency is about MIX_MILLIS * LINE_BUFFERS. With adaptive
+        buffering, this changes from MIN_LINE_BUFFERS to
+        MAX_LINE_BUFFERS.
+    */
+    public static final int LINE_BUFFERS = 4;
+
+    public static final int MIN_LINE_BUFFERS = 2;
+    public static final int MAX_LINE_BUFFERS = 16;
+
+    /**
+        Steal policy: steal the quietest of the voices with the
+        lowest priority.
+    */
+    public static final int STEAL_QUIETEST = 0;
+
+    /**
+        Steal policy: steal the oldest of the voices with the
+        lowest priority.
+    */
+    public static final int STEAL_OLDEST = 1;
+
+    private static final int COMMAND_QUEUE_SIZE = 1024;
+
+    private AudioFormat format;
+    private int maxVoices;
+    private SourceDataLine line;
+    private LineMonitor monitor;
+    private AudioMetrics metrics;
+    private AudioSink sink;
+    // offline: frames waiting to be rendered, times 1000
+    private long pendingFrames;
+    private Thread thread;
+    private volatile boolean running;
+    private boolean paused;
+    private volatile long deadline;
+    private volatile int stealPolicy;
+    private volatile long droppedCount;
+    // plays lost to a full command queue, written by the game thread
+    private volatile long lostCount;
+    private volatile long stolenCount;
+
+    // commands from the game thread
+    private AudioCommandQueue commands;
+    // voices owned by the mixer thread
+    private ArrayList voices;
+    // voices started since the last write
+    private ArrayList startedVoices;
+    private volatile int voiceCount;
+
+    private byte[] voiceBuffer;
+    private int[] mixBuffer;
+    private byte[] outputBuffer;
+
+    /**
+        Checks if the specified format can be mixed.
+    */
+    public static boolean isSupported(AudioFormat format) {
+        return format.getSampleSizeInBits() == 16 &&
+            format.getEncoding().equals(
+                AudioFormat.Encoding.PCM_SIGNED);
+    }
+
+
+    /**
+        Creates a new SoundMixer that plays up to the specified
+        number of voices at once, and opens its line. Call
+        start() to start mixing.
+        @throws IllegalArgumentException if the format can't be
+        mixed.
+    */
+    public SoundMixer(AudioFormat format, int maxVoices)
+        throws LineUnavailableException
+    {
+        init(format, maxVoices);
+        DataLine.Info lineInfo = new DataLine.Info(
+            SourceDataLine.class, format);
+        line = (SourceDataLine)AudioSystem.getLine(lineInfo);
+        line.open(format, outputBuffer.length * MAX_LINE_BUFFERS);
+        monitor = new LineMonitor("SoundMixer", line,
+            outputBuffer.length, MIN_LINE_BUFFERS, LINE_BUFFERS,
+            MAX_LINE_BUFFERS, metrics);
+    }
+
+
+    /**
+        Creates a new SoundMixer that renders up to the specified
+        number of voices at once to an AudioSink, offline. Call
+        start(), then render() every tick.
+        @throws IllegalArgumentException if the format can't be
+        mixed.
+    */
+    public SoundMixer(AudioFormat format, int maxVoices,
+        AudioSink sink)
+    {
+        init(format, maxVoices);
+        this.sink = sink;
+    }
+
+
+    private void init(AudioFormat format, int maxVoices) {
+        if (!isSupported(format)) {
+            throw new IllegalArgumentException(
+                "Can't mix format: " + format);
+        }
+        this.format = format;
+        this.maxVoices = maxVoices;
+        commands = new AudioCommandQueue(COMMAND_QUEUE_SIZE);
+        voices = new ArrayList();
+        startedVoices = new ArrayList();
+        metrics = new AudioMetrics();
+        stealPolicy = STEAL_QUIETEST;
+
+        int frames = Math.round(format.getSampleRate() *
+            MIX_MILLIS / 1000);
+        int bufferSize = format.getFrameSize() * frames;
+        voiceBuffer = new byte[bufferSize];
+        mixBuffer = new int[bufferSize / 2];
+        outputBuffer = new byte[bufferSize];
+    }
+
+
+    /**
+        Starts the line and the mixer thread. When rendering
+        offline, only marks the mixer as running.
+    */
+    public void start() {
+        running = true;
+        if (sink != null) {
+            return;
+        }
+        line.start();
+        thread = new Thread(this, "SoundMixer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+
+    /**
+        Stops the mixer thread and closes the line or the sink.
+        Any playing sounds are stopped, and sounds still waiting
+        to start are closed.
+    */
+    public void close() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException ex) { }
+        }
+        // the audio thread is done, so the voices can be closed
+        for (int i=0; i<voices.size(); i++) {
+            close(((Voice)voices.get(i)).source);
+        }
+        voices.clear();
+        voiceCount = 0;
+        // the commands the audio thread didn't get to
+        AudioCommandQueue.Command command;
+        while ((command = commands.peek()) != null) {
+            if (command.type == AudioCommandQueue.PLAY ||
+                command.type == AudioCommandQueue.STOP)
+            {
+                close(command.source);
+            }
+            commands.release();
+        }
+        if (sink != null) {
+            try {
+                sink.close();
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        else {
+            monitor.close();
+            line.close();
+        }
+    }
+
+
+    /**
+        Checks if this mixer renders offline to an AudioSink.
+    */
+    public boolean isOffline() {
+        return (sink != null);
+    }
+
+
+    /**
+        Renders the specified amount of time of sound to the
+        AudioSink, running any commands sent since the last call
+        first. Sound is rendered in whole buffers of MIX_MILLIS;
+        the rest is rendered with the next call. Nothing is
+        rendered while paused. Call from the game thread only.
+        @throws IllegalStateException if this mixer doesn't
+        render offline.
+    */
+    public void render(long elapsedTime) {
+        if (sink == null) {
+            throw new IllegalStateException("Not rendering offline");
+        }
+        if (!running) {
+            return;
+        }
+        runCommands();
+        if (paused) {
+            return;
+        }
+        int bufferFrames = outputBuffer.length / format.getFrameSize();
+        pendingFrames += elapsedTime * Math.round(format.getSampleRate());
+        while (pendingFrames >= bufferFrames * 1000L) {
+            pendingFrames -= bufferFrames * 1000L;
+            mix();
+            try {
+                sink.write(outputBuffer, 0, outputBuffer.length);
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+                running = false;
+                return;
+            }
+            recordLatencies();
+        }
+        voiceCount = voices.size();
+    }
+
+
+    /**
+        Gets the AudioFormat this mixer plays.
+    */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+
+    /**
+        Gets the maximum number of voices played at once.
+    */
+    public int getMaxVoices() {
+        return maxVoices;
+    }
+
+
+    /**
+        Gets the latency and underrun measurements.
+    */
+    public AudioMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+        Gets the number of commands waiting for the mixer
+        thread.
+    */
+    public int getCommandCount() {
+        return commands.size();
+    }
+
+
+    /**
+        Gets the number of voices playing.
+    */
+    public int getVoiceCount() {
+        return voiceCount;
+    }
+
+
+    /**
+        Sets how long, in milliseconds, a request to play can
+        wait before it's dropped. A deadline of 0 or less never
+        drops a request.
+    */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+
+    /**
+        Gets the deadline, in milliseconds.
+    */
+    public long getDeadline() {
+        return deadline;
+    }
+
+
+    /**
+        Sets which voice is stolen when all voices are in use,
+        either STEAL_QUIETEST or STEAL_OLDEST.
+    */
+    public void setStealPolicy(int stealPolicy) {
+        this.stealPolicy = stealPolicy;
+    }
+
+
+    /**
+        Gets the number of requests dropped because they missed
+        the deadline or no voice could be stolen.
+    */
+    public long getDroppedCount() {
+        return droppedCount + lostCount;
+    }
+
+
+    /**
+        Gets the number of voices stopped to make room for a
+        voice with the same or higher priority.
+    */
+    public long getStolenCount() {
+        return stolenCount;
+    }
+
+
+    /**
+        Gets the number of commands lost because the command
+        queue was full.
+    */
+    public long getLostCommandCount() {
+        return commands.getOverflowCount();
+    }
+
+
+    /**
+        Starts playing a sound from an InputStream of samples in
+        this mixer's format. This method returns immediately,
+        and the sound starts with the next mixed buffer, if it
+        isn't dropped. Returns false if this mixer is closed or
+        the command queue is full.
+    */
+    public boolean play(InputStream source, int priority) {
+        if (!running) {
+            return false;
+        }
+        if (!send(AudioCommandQueue.PLAY, source, priority, null,
+            0, 0))
+        {
+            lostCount++;
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+        Stops a playing sound. The stream is closed.
+    */
+    public void stop(InputStream source) {
+        send(AudioCommandQueue.STOP, source, 0, null, 0, 0);
+    }
+
+
+    /**
+        Sets the gain of a playing sound, where 1 is the
+        sound's own volume.
+    */
+    public void setGain(InputStream source, float gain) {
+        send(AudioCommandQueue.SET_GAIN, source, 0, null, 0, gain);
+    }
+
+
+    /**
+        Sets the pan of a playing sound, from -1 (left) to 1
+        (right). Only used with stereo formats.
+    */
+    public void setPan(InputStream source, float pan) {
+        send(AudioCommandQueue.SET_PAN, source, 0, null, 0, pan);
+    }
+
+
+    /**
+        Sets a parameter of a SoundFilter that is playing. The
+        change is made on the mixer thread, between buffers.
+        @see SoundFilter#setParameter(int, float)
+    */
+    public void setFilterParameter(SoundFilter filter,
+        int parameter, float value)
+    {
+        send(AudioCommandQueue.SET_FILTER_PARAMETER, null, 0, filter,
+            parameter, value);
+    }
+
+
+    /**
+        Sets the paused state. While paused, no voices are read
+        and nothing is written to the line.
+    */
+    public void setPaused(boolean paused) {
+        send(paused ? AudioCommandQueue.PAUSE :
+            AudioCommandQueue.RESUME, null, 0, null, 0, 0);
+    }
+
+
+    /**
+        Queues a command and wakes up the mixer thread.
+    */
+    private boolean send(int type, InputStream source, int priority,
+        SoundFilter filter, int parameter, float value)
+    {
+        boolean sent = commands.offer(type, source, priority, filter,
+            parameter, value);
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        return sent;
+    }
+
+
+    /**
+        Mixes voices until the mixer is closed.
+    */
+    public void run() {
+        while (running) {
+            runCommands();
+            voiceCount = voices.size();
+
+            if (paused || voices.isEmpty()) {
+                // wait for a command
+                monitor.idle();
+                LockSupport.park(this);
+            }
+            else if (running) {
+                mix();
+                monitor.write(outputBuffer, 0, outputBuffer.length);
+                recordLatencies();
+            }
+        }
+    }
+
+
+    /**
+        Runs every command in the queue.
+    */
+    private void runCommands() {
+        AudioCommandQueue.Command command;
+        while ((command = commands.peek()) != null) {
+            switch (command.type) {
+                case AudioCommandQueue.PLAY:
+                    startVoice(new Voice(command.source,
+                        command.priority, command.time));
+                    break;
+                case AudioCommandQueue.STOP:
+                    int index = findVoice(command.source);
+                    if (index != -1) {
+                        voices.remove(index);
+                    }
+                    close(command.source);
+                    break;
+                case AudioCommandQueue.PAUSE:
+                    paused = true;
+                    break;
+                case AudioCommandQueue.RESUME:
+                    paused = false;
+                    break;
+                case AudioCommandQueue.SET_GAIN:
+                    index = findVoice(command.source);
+                    if (index != -1) {
+                        ((Voice)voices.get(index)).gain = command.value;
+                    }
+                    break;
+                case AudioCommandQueue.SET_PAN:
+                    index = findVoice(command.source);
+                    if (index != -1) {
+                        ((Voice)voices.get(index)).pan = Math.max(-1,
+                            Math.min(1, command.value));
+                    }
+                    break;
+                case AudioCommandQueue.SET_FILTER_PARAMETER:
+                    command.filter.setParameter(command.parameter,
+                        command.value);
+                    break;
+            }
+            commands.release();
+        }
+    }
+
+
+    /**
+        Finds the index of the voice playing the specified
+        stream, or -1 if it isn't playing.
+    */
+    private int findVoice(InputStream source) {
+        for (int i=0; i<voices.size(); i++) {
+            if (((Voice)voices.get(i)).source == source) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+        Adds a voice to the playing voices, unless it missed its
+        deadline or there is no room for it. A dropped voice's
+        stream is closed.
+    */
+    private void startVoice(Voice voice) {
+        long now = System.nanoTime();
+        long deadline = this.deadline;
+        // offline, commands always run at the next render()
+        if (sink == null && deadline > 0 &&
+            now - voice.requestTime > deadline * 1000000)
+        {
+            droppedCount++;
+            close(voice.source);
+            return;
+        }
+
+        if (voices.size() >= maxVoices) {
+            int victim = findVictim(voice.priority);
+            if (victim == -1) {
+                droppedCount++;
+                close(voice.source);
+                return;
+            }
+            close(((Voice)voices.remove(victim)).source);
+            stolenCount++;
+        }
+        voice.startTime = now;
+        voices.add(voice);
+        startedVoices.add(voice);
+    }
+
+
+    /**
+        Records the latency of the voices whose first samples
+        were just written.
+    */
+    private void recordLatencies() {
+        if (startedVoices.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (int i=0; i<startedVoices.size(); i++) {
+            Voice voice = (Voice)startedVoices.get(i);
+            metrics.recordLatency(now - voice.requestTime);
+        }
+        startedVoices.clear();
+    }
+
+
+    /**
+        Finds the index of the voice to steal for a voice with
+        the specified priority, or -1 if every voice has a higher
+        priority.
+    */
+    private int findVictim(int priority) {
+        boolean oldest = (stealPolicy == STEAL_OLDEST);
+        int victim = -1;
+        Voice best = null;
+        for (int i=0; i<voices.size(); i++) {
+            Voice voice = (Voice)voices.get(i);
+            if (voice.priority > priority) {
+                continue;
+            }
+            boolean better;
+            if (best == null || voice.priority != best.priority) {
+                better = (best == null ||
+                    voice.priority < best.priority);
+            }
+            else if (oldest || voice.level == best.level) {
+                better = (voice.startTime < best.startTime);
+            }
+            else {
+                better = (voice.level < best.level);
+            }
+            if (better) {
+                best = voice;
+                victim = i;
+            }
+        }
+        return victim;
+    }
+
+
+    /**
+        Mixes the next buffer of every voice into the output
+        buffer. Voices that end are removed.
+    */
+    private void mix() {
+        int[] mix = mixBuffer;
+        for (int i=0; i<mix.length; i++) {
+            mix[i] = 0;
+        }
+
+        boolean bigEndian = format.isBigEndian();
+        boolean stereo = (format.getChannels() == 2);
+        int ended = 0;
+        for (int v=voices.size()-1; v>=0; v--) {
+            Voice voice = (Voice)voices.get(v);
+            int length = read(voice.source, voiceBuffer);
+            if (length < voiceBuffer.length) {
+                voices.remove(v);
+                close(voice.source);
+                ended++;
+            }
+            float left = voice.gain;
+            float right = voice.gain;
+            if (stereo && voice.pan != 0) {
+                left *= Math.min(1, 1 - voice.pan);
+                right *= Math.min(1, 1 + voice.pan);
+            }
+            voice.level = addSamples(voiceBuffer, length / 2,
+                bigEndian, left, right, stereo);
+        }
+        if (ended > 0) {
+            voiceCount = voices.size();
+        }
+
+        // clip to 16 bits
+        byte[] out = outputBuffer;
+        for (int i=0; i<mix.length; i++) {
+            int sample = mix[i];
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            }
+            else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            if (bigEndian) {
+                out[i*2] = (byte)(sample >> 8);
+                out[i*2+1] = (byte)sample;
+            }
+            else {
+                out[i*2] = (byte)sample;
+                out[i*2+1] = (byte)(sample >> 8);
+            }
+        }
+    }
+
+
+    /**
+        Adds the 16-bit samples in the buffer to the mix buffer,
+        scaled by the left and right gains (for mono, only the
+        left gain is used). Returns the loudest added sample's
+        level.
+    */
+    private int addSamples(byte[] buffer, int numSamples,
+        boolean bigEndian, float left, float right, boolean stereo)
+    {
+        int[] mix = mixBuffer;
+        int level = 0;
+        if (left != 1 || (stereo && right != 1)) {
+            float[] gains = { left, stereo ? right : left };
+            for (int i=0; i<numSamples; i++) {
+                int sample;
+                if (bigEndian) {
+                    sample = (short)((buffer[i*2] << 8) |
+                        (buffer[i*2+1] & 0xff));
+                }
+                else {
+                    sample = (short)((buffer[i*2+1] << 8) |
+                        (buffer[i*2] & 0xff));
+                }
+                sample = (int)(sample * gains[i & 1]);
+                mix[i] += sample;
+                level = Math.max(level, Math.abs(sample));
+            }
+        }
+        else if (bigEndian) {
+            for (int i=0; i<numSamples; i++) {
+                int sample = (short)((buffer[i*2] << 8) |
+                    (buffer[i*2+1] & 0xff));
+                mix[i] += sample;
+                level = Math.max(level, Math.abs(sample));
+            }
+        }
+        else {
+            for (int i=0; i<numSamples; i++) {
+                int sample = (short)((buffer[i*2+1] << 8) |
+                    (buffer[i*2] & 0xff));
+                mix[i] += sample;
+                level = Math.max(level, Math.abs(sample));
+            }
+        }
+        return level;
+    }
+
+
+    /**
+        Closes a voice's stream, which lets its filters and any
+        open file go.
+    */
+    private void close(InputStream source) {
+        try {
+            source.close();
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+
+    /**
+        Reads from the stream until the buffer is full or the
+        stream ends. Returns the number of bytes read.
+    */
+    private int read(InputStream source, byte[] buffer) {
+        int length = 0;
+        try {
+            while (length < buffer.length) {
+                int count = source.read(buffer, length,
+                    buffer.length - length);
+                if (count == -1) {
+                    break;
+                }
+                length += count;
+            }
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return length;
+    }
+
+
+    /**
+        A sound being mixed.
+    */
+    private static class Voice {
+
+        InputStream source;
+        int priority;
+        long requestTime;
+        long startTime;
+        // the loudest sample in the last mixed buffer
+        int level;
+        float gain;
+        // -1 (left) to 1 (right)
+        float pan;
+
+        public Voice(InputStream source, int priority,
+            long requestTime)
+        {
+            this.source = source;
+            this.priority = priority;
+            this.requestTime = requestTime;
+            // treat as loud until it's been mixed once
+            this.level = Short.MAX_VALUE;
+            this.gain = 1;
+        }
+    }
+}
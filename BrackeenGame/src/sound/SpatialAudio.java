@@ -0,0 +1,241 @@
+package com.brackeen.javagamebook.sound;
+
+import java.io.InputStream;
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The SpatialAudio class plays sounds that come from a Sprite
+    and are heard by a listener Sprite. Sounds get quieter with
+    distance and, with a stereo playback format, are panned to
+    the side the source is on, keeping the same total power.
+    <p>The audio thread never reads a Sprite. Instead, the game
+    thread calls publish() once per tick, which takes a snapshot
+    of the listener's and every playing source's position. The
+    SpatialFilters only read the latest snapshot.
+    <p>Each source slot keeps its SpatialFilter, which is reset
+    and reused by the next sound played from that slot.
+    <p>A sound whose source is farther than the maximum distance
+    when it's requested isn't played at all, so it doesn't take a
+    voice.
+    @see SpatialFilter
+*/
+public class SpatialAudio {
+
+    private SoundManager soundManager;
+    private int maxDistance;
+    private int channels;
+    private Sprite listener;
+    // the source of each slot, or null if the slot is free
+    private Sprite[] sources;
+    // the filter of each slot, or null if it was never used
+    private SpatialFilter[] filters;
+    private volatile Snapshot snapshot;
+    private volatile long culledCount;
+
+    /**
+        Creates a new SpatialAudio that plays sounds through the
+        specified SoundManager. The maxDistance is the maximum
+        distance that a sound can be heard.
+    */
+    public SpatialAudio(SoundManager soundManager, int maxDistance) {
+        this.soundManager = soundManager;
+        this.maxDistance = maxDistance;
+        channels = soundManager.getPlaybackFormat().getChannels();
+        sources = new Sprite[16];
+        filters = new SpatialFilter[16];
+        snapshot = new Snapshot(0);
+    }
+
+
+    /**
+        Sets the Sprite that hears the sounds. Takes effect with
+        the next publish().
+    */
+    public synchronized void setListener(Sprite listener) {
+        this.listener = listener;
+    }
+
+
+    /**
+        Gets the maximum distance that a sound can be heard.
+    */
+    public int getMaxDistance() {
+        return maxDistance;
+    }
+
+
+    /**
+        Gets the number of sounds that weren't played because
+        they were too far away.
+    */
+    public long getCulledCount() {
+        return culledCount;
+    }
+
+
+    /**
+        Checks if a sound from the specified source would be
+        heard. Call from the game thread.
+    */
+    public synchronized boolean isAudible(Sprite source) {
+        if (listener == null) {
+            return false;
+        }
+        float dx = source.getX() - listener.getX();
+        float dy = source.getY() - listener.getY();
+        return (dx * dx + dy * dy < (float)maxDistance * maxDistance);
+    }
+
+
+    /**
+        Plays a sound coming from the specified source with the
+        specified priority. Returns null if the source is too far
+        away to be heard, or if the sound couldn't be played.
+        Call from the game thread.
+    */
+    public InputStream play(Sound sound, Sprite source, int priority) {
+        if (!isAudible(source)) {
+            culledCount++;
+            return null;
+        }
+        int slot = addSource(source);
+        SpatialFilter filter = getFilter(slot);
+        // make sure the new source is in the snapshot
+        publish();
+        InputStream stream = soundManager.play(sound, filter, false,
+            priority);
+        if (stream == null) {
+            // not playing - free the slot and the Sprite
+            removeSource(slot);
+        }
+        return stream;
+    }
+
+
+    /**
+        Takes a snapshot of the listener's and sources'
+        positions for the SpatialFilters to use. Call from the
+        game thread once per tick.
+    */
+    public synchronized void publish() {
+        Snapshot snapshot = new Snapshot(sources.length);
+        if (listener != null) {
+            snapshot.listenerX = listener.getX();
+            snapshot.listenerY = listener.getY();
+        }
+        for (int i=0; i<sources.length; i++) {
+            if (sources[i] != null) {
+                snapshot.x[i] = sources[i].getX();
+                snapshot.y[i] = sources[i].getY();
+            }
+        }
+        this.snapshot = snapshot;
+    }
+
+
+    /**
+        Gets the last published snapshot.
+    */
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+
+    /**
+        Adds a source and returns its slot.
+    */
+    private synchronized int addSource(Sprite source) {
+        for (int i=0; i<sources.length; i++) {
+            if (sources[i] == null) {
+                sources[i] = source;
+                return i;
+            }
+        }
+        Sprite[] newSources = new Sprite[sources.length * 2];
+        System.arraycopy(sources, 0, newSources, 0, sources.length);
+        SpatialFilter[] newFilters = new SpatialFilter[newSources.length];
+        System.arraycopy(filters, 0, newFilters, 0, filters.length);
+        int slot = sources.length;
+        newSources[slot] = source;
+        sources = newSources;
+        filters = newFilters;
+        return slot;
+    }
+
+
+    /**
+        Gets the filter of a slot, ready to play a sound. The
+        slot's last sound is finished, so its filter is reset and
+        reused.
+    */
+    private synchronized SpatialFilter getFilter(int slot) {
+        SpatialFilter filter = filters[slot];
+        if (filter == null) {
+            filter = new SpatialFilter(this, slot, channels);
+            filters[slot] = filter;
+        }
+        else {
+            filter.reset();
+        }
+        return filter;
+    }
+
+
+    /**
+        Frees a source's slot. Called from the audio thread when
+        a sound is finished.
+    */
+    synchronized void removeSource(int slot) {
+        sources[slot] = null;
+    }
+
+
+    /**
+        Computes the left and right gain of a source from a
+        snapshot. For mono sound, both gains are the same.
+    */
+    void getGains(Snapshot snapshot, int slot, float[] gains) {
+        if (slot >= snapshot.x.length) {
+            // not in this snapshot yet
+            gains[0] = gains[1] = 0;
+            return;
+        }
+        float dx = snapshot.x[slot] - snapshot.listenerX;
+        float dy = snapshot.y[slot] - snapshot.listenerY;
+        float distance = (float)Math.sqrt(dx * dx + dy * dy);
+
+        // set volume from 0 (no sound) to 1
+        float volume = (maxDistance - distance) / maxDistance;
+        if (volume <= 0) {
+            gains[0] = gains[1] = 0;
+            return;
+        }
+        if (channels < 2) {
+            gains[0] = gains[1] = volume;
+            return;
+        }
+
+        // constant power pan: -1 is left, 1 is right
+        float pan = Math.max(-1, Math.min(1, dx / maxDistance));
+        double angle = (pan + 1) * Math.PI / 4;
+        gains[0] = (float)Math.cos(angle) * volume;
+        gains[1] = (float)Math.sin(angle) * volume;
+    }
+
+
+    /**
+        The positions of the listener and the sources at one
+        tick. A snapshot isn't changed after it's published.
+    */
+    static class Snapshot {
+        float listenerX;
+        float listenerY;
+        float[] x;
+        float[] y;
+
+        Snapshot(int numSources) {
+            x = new float[numSources];
+            y = new float[numSources];
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.brackeen.javagamebook.sound;
+
+/**
+    The SpatialFilter class is a SoundFilter that sets the volume
+    and, for stereo sound, the pan of a sound from the positions
+    published by a SpatialAudio. Unlike Filter3d, it never reads
+    a Sprite, so it's safe to run on the audio thread while the
+    game thread moves the Sprites.
+    <p>The gains change smoothly over each block of samples, so
+    moving sources don't click.
+    @see SpatialAudio
+*/
+public class SpatialFilter extends SoundFilter {
+
+    private SpatialAudio spatialAudio;
+    private int slot;
+    private int channels;
+    private float[] gains;
+    private float lastLeft;
+    private float lastRight;
+    private boolean started;
+    private boolean finished;
+
+    /**
+        Creates a new SpatialFilter for the source in the
+        specified slot of a SpatialAudio.
+    */
+    SpatialFilter(SpatialAudio spatialAudio, int slot, int channels) {
+        this.spatialAudio = spatialAudio;
+        this.slot = slot;
+        this.channels = channels;
+        gains = new float[2];
+    }
+
+
+    /**
+        Resets this filter to play another sound from its slot.
+    */
+    public void reset() {
+        started = false;
+        finished = false;
+    }
+
+
+    /**
+        Frees this filter's source slot.
+    */
+    public void streamFinished() {
+        if (!finished) {
+            finished = true;
+            spatialAudio.removeSource(slot);
+        }
+    }
+
+
+    /**
+        Filters the sound, ramping from the last block's gains to
+        the gains of the latest snapshot.
+    */
+    public void filter(float[] samples, int offset, int length) {
+        if (finished) {
+            return;
+        }
+        spatialAudio.getGains(spatialAudio.getSnapshot(), slot, gains);
+        float left = gains[0];
+        float right = gains[1];
+        if (!started) {
+            // start at the right volume instead of ramping up
+            lastLeft = left;
+            lastRight = right;
+            started = true;
+        }
+
+        if (channels == 2) {
+            int numFrames = length / 2;
+            float stepLeft = (left - lastLeft) / Math.max(1, numFrames);
+            float stepRight = (right - lastRight) /
+                Math.max(1, numFrames);
+            for (int i=0; i<numFrames; i++) {
+                int position = offset + i * 2;
+                samples[position] *= lastLeft + stepLeft * i;
+                samples[position + 1] *= lastRight + stepRight * i;
+            }
+        }
+        else {
+            // mono, or more channels than can be panned
+            float step = (left - lastLeft) / Math.max(1, length);
+            for (int i=0; i<length; i++) {
+                samples[offset + i] *= lastLeft + step * i;
+            }
+        }
+
+        lastLeft = left;
+        lastRight = right;
+    }
+}
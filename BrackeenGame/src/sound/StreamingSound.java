@@ -0,0 +1,202 @@
+package com.brackeen.javagamebook.sound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import com.brackeen.javagamebook.util.ChannelInputStream;
+
+/**
+    The StreamingSound class is a Sound that reads its samples
+    from a WAV file while playing, instead of keeping them in
+    memory. Opening a StreamingSound only reads the file's
+    header, and each stream reads the file in small blocks
+    through its own FileChannel.
+    <p>If the file's format isn't the playback format, the
+    samples are converted as they are read.
+    <p>Only uncompressed (PCM) WAV files are supported.
+*/
+public class StreamingSound extends Sound {
+
+    private static final int WAVE_FORMAT_PCM = 1;
+
+    private File file;
+    private AudioFormat fileFormat;
+    private AudioFormat playbackFormat;
+    private long dataStart;
+    private long dataLength;
+
+    /**
+        Opens a WAV file for streaming in the specified playback
+        format.
+        @throws IOException if the file can't be read or isn't
+        an uncompressed WAV file.
+    */
+    public StreamingSound(File file, AudioFormat playbackFormat)
+        throws IOException
+    {
+        super(null);
+        this.file = file;
+        this.playbackFormat = playbackFormat;
+        FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.READ);
+        try {
+            readHeader(channel);
+        }
+        finally {
+            channel.close();
+        }
+        if (!AudioSystem.isConversionSupported(playbackFormat,
+            fileFormat))
+        {
+            throw new IOException("Can't convert " + fileFormat +
+                " to " + playbackFormat);
+        }
+    }
+
+
+    /**
+        Gets the file this Sound streams from.
+    */
+    public File getFile() {
+        return file;
+    }
+
+
+    /**
+        Gets the format of the samples in the file.
+    */
+    public AudioFormat getFileFormat() {
+        return fileFormat;
+    }
+
+
+    /**
+        Gets the length of the samples in the file, in bytes.
+    */
+    public long getLength() {
+        return dataLength;
+    }
+
+
+    /**
+        Opens a stream of this Sound's samples in the playback
+        format, optionally looping. A looping stream plays until
+        it's closed.
+    */
+    public InputStream openStream(boolean loop) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.READ);
+        InputStream is = new ChannelInputStream(channel, dataStart,
+            dataLength, loop);
+        if (fileFormat.matches(playbackFormat)) {
+            return is;
+        }
+
+        // convert as the samples are read
+        AudioInputStream source = new AudioInputStream(is,
+            fileFormat, loop ? AudioSystem.NOT_SPECIFIED :
+            dataLength / fileFormat.getFrameSize());
+        return AudioSystem.getAudioInputStream(playbackFormat,
+            source);
+    }
+
+
+    /**
+        Reads the RIFF header and the chunk list up to the data
+        chunk.
+    */
+    private void readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != chunkId("RIFF") ||
+            header.getInt(8) != chunkId("WAVE"))
+        {
+            throw new IOException("Not a WAV file: " + file);
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate(16);
+        chunk.order(ByteOrder.LITTLE_ENDIAN);
+        long position = 12;
+        while (true) {
+            chunk.clear();
+            chunk.limit(8);
+            readFully(channel, chunk, position);
+            int id = chunk.getInt(0);
+            long size = chunk.getInt(4) & 0xffffffffL;
+            position += 8;
+
+            if (id == chunkId("fmt ")) {
+                chunk.clear();
+                readFully(channel, chunk, position);
+                fileFormat = createFormat(chunk);
+            }
+            else if (id == chunkId("data")) {
+                if (fileFormat == null) {
+                    throw new IOException("No format chunk: " + file);
+                }
+                dataStart = position;
+                // the size can be wrong in files written by streams
+                dataLength = Math.min(size, channel.size() - position);
+                dataLength -= dataLength % fileFormat.getFrameSize();
+                return;
+            }
+            // chunks are padded to an even size
+            position += size + (size & 1);
+        }
+    }
+
+
+    /**
+        Creates the AudioFormat described by a format chunk.
+    */
+    private AudioFormat createFormat(ByteBuffer chunk)
+        throws IOException
+    {
+        int formatTag = chunk.getShort(0) & 0xffff;
+        int channels = chunk.getShort(2) & 0xffff;
+        int sampleRate = chunk.getInt(4);
+        int frameSize = chunk.getShort(12) & 0xffff;
+        int sampleSize = chunk.getShort(14) & 0xffff;
+        if (formatTag != WAVE_FORMAT_PCM || channels == 0 ||
+            frameSize == 0)
+        {
+            throw new IOException("Not an uncompressed WAV file: " +
+                file);
+        }
+        // 8-bit WAV samples are unsigned
+        AudioFormat.Encoding encoding = (sampleSize <= 8) ?
+            AudioFormat.Encoding.PCM_UNSIGNED :
+            AudioFormat.Encoding.PCM_SIGNED;
+        return new AudioFormat(encoding, sampleRate, sampleSize,
+            channels, frameSize, sampleRate, false);
+    }
+
+
+    private static void readFully(FileChannel channel,
+        ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            int numBytesRead = channel.read(buffer,
+                position + buffer.position());
+            if (numBytesRead == -1) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+
+    private static int chunkId(String id) {
+        return (id.charAt(0) & 0xff) |
+            ((id.charAt(1) & 0xff) << 8) |
+            ((id.charAt(2) & 0xff) << 16) |
+            ((id.charAt(3) & 0xff) << 24);
+    }
+}
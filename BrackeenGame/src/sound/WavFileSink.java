@@ -0,0 +1,128 @@
+package com.brackeen.javagamebook.sound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import javax.sound.sampled.AudioFormat;
+
+/**
+    The WavFileSink class is an AudioSink that writes the
+    rendered samples to a WAV file. The samples are buffered and
+    written in large blocks, and the header's sizes are filled in
+    when the sink is closed.
+    <p>WAV files hold little-endian, signed PCM samples, so only
+    that format (or unsigned 8-bit) can be written.
+*/
+public class WavFileSink implements AudioSink {
+
+    private static final int HEADER_SIZE = 44;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private AudioFormat format;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private long dataSize;
+
+    /**
+        Creates a new WavFileSink that writes to the specified
+        file, replacing anything in it.
+        @throws IllegalArgumentException if the format can't be
+        written to a WAV file.
+    */
+    public WavFileSink(File file, AudioFormat format)
+        throws IOException
+    {
+        boolean pcm8 = format.getSampleSizeInBits() == 8 &&
+            format.getEncoding().equals(
+                AudioFormat.Encoding.PCM_UNSIGNED);
+        boolean pcm16 = format.getSampleSizeInBits() == 16 &&
+            format.getEncoding().equals(
+                AudioFormat.Encoding.PCM_SIGNED) &&
+            !format.isBigEndian();
+        if (!pcm8 && !pcm16) {
+            throw new IllegalArgumentException(
+                "Can't write format to a WAV file: " + format);
+        }
+        this.format = format;
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        // leave room for the header
+        buffer.position(HEADER_SIZE);
+    }
+
+
+    public void write(byte[] samples, int offset, int length)
+        throws IOException
+    {
+        dataSize += length;
+        while (length > 0) {
+            int count = Math.min(length, buffer.remaining());
+            buffer.put(samples, offset, count);
+            offset += count;
+            length -= count;
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+        }
+    }
+
+
+    /**
+        Writes the rest of the samples and the header, and closes
+        the file.
+    */
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        flush();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        int size = (int)Math.min(dataSize,
+            Integer.MAX_VALUE - HEADER_SIZE);
+        header.put(new byte[] { 'R', 'I', 'F', 'F' });
+        header.putInt(HEADER_SIZE - 8 + size);
+        header.put(new byte[] { 'W', 'A', 'V', 'E' });
+        header.put(new byte[] { 'f', 'm', 't', ' ' });
+        header.putInt(16);
+        // uncompressed PCM
+        header.putShort((short)1);
+        header.putShort((short)format.getChannels());
+        header.putInt(Math.round(format.getSampleRate()));
+        header.putInt(Math.round(format.getSampleRate()) *
+            format.getFrameSize());
+        header.putShort((short)format.getFrameSize());
+        header.putShort((short)format.getSampleSizeInBits());
+        header.put(new byte[] { 'd', 'a', 't', 'a' });
+        header.putInt(size);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+        channel.close();
+        channel = null;
+    }
+
+
+    /**
+        Gets the number of bytes of samples written.
+    */
+    public long getDataSize() {
+        return dataSize;
+    }
+
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -2,18 +2,43 @@ package com.brackeen.javagamebook.test;
 
 import java.awt.*;
 import javax.swing.ImageIcon;
-import javax.swing.JFrame;
 
 import com.brackeen.javagamebook.graphics.ScreenManager;
 
 /**
     Simple abstract class used for testing. Subclasses should
     implement the draw() method.
+    <p>In headless mode no window is opened: the game is only
+    updated, as fast as possible or at the tick rate, and the
+    number of ticks per second is reported. This is useful for
+    measuring simulation speed on machines without a display.
 */
-public abstract class GameCore extends JFrame {
+public abstract class GameCore {
 
     protected static final int FONT_SIZE = 24;
 
+    /**
+        Default number of simulation updates per second.
+    */
+    public static final int DEFAULT_TICK_RATE = 100;
+
+    /**
+        Default maximum number of updates run to catch up before
+        a frame is drawn.
+    */
+    public static final int DEFAULT_MAX_UPDATES_PER_FRAME = 5;
+
+    /**
+        Default maximum number of frames drawn per second.
+    */
+    public static final int DEFAULT_MAX_FRAME_RATE = 120;
+
+    /**
+        Size of the imaginary screen used in headless mode.
+    */
+    public static final int HEADLESS_WIDTH = 800;
+    public static final int HEADLESS_HEIGHT = 600;
+
     private static final DisplayMode POSSIBLE_MODES[] = {
         new DisplayMode(800, 600, 16, 0),
         new DisplayMode(800, 600, 32, 0),
@@ -28,6 +53,16 @@ public abstract class GameCore extends JFrame {
 
     private boolean isRunning;
     protected ScreenManager screen;
+    private int tickRate = DEFAULT_TICK_RATE;
+    private int maxUpdatesPerFrame = DEFAULT_MAX_UPDATES_PER_FRAME;
+    private int maxFrameRate = DEFAULT_MAX_FRAME_RATE;
+    private float interpolation;
+    // simulated game time, in nanoseconds
+    private long gameTime;
+    private boolean headless;
+    private boolean headlessFixedRate;
+    private long headlessMaxTicks;
+    private float ticksPerSecond;
 
 
     /**
@@ -47,7 +82,9 @@ public abstract class GameCore extends JFrame {
             gameLoop();
         }
         finally {
-            screen.restoreScreen();
+            if (screen != null) {
+                screen.restoreScreen();
+            }
             lazilyExit();
         }
     }
@@ -78,9 +115,65 @@ public abstract class GameCore extends JFrame {
 
 
     /**
-        Sets full screen mode and initiates and objects.
+        Sets headless mode. Must be called before run().
+        @param fixedRate If true, updates are paced at the tick
+        rate; otherwise updates run as fast as possible.
+        @param maxTicks The number of updates to run before
+        stopping, or 0 to run until stop() is called.
+    */
+    public void setHeadless(boolean fixedRate, long maxTicks) {
+        headless = true;
+        headlessFixedRate = fixedRate;
+        headlessMaxTicks = maxTicks;
+    }
+
+
+    /**
+        Checks if this game is running in headless mode.
+    */
+    public boolean isHeadless() {
+        return headless;
+    }
+
+
+    /**
+        Gets the width of the screen, or HEADLESS_WIDTH in
+        headless mode.
+    */
+    public int getScreenWidth() {
+        return headless ? HEADLESS_WIDTH : screen.getWidth();
+    }
+
+
+    /**
+        Gets the height of the screen, or HEADLESS_HEIGHT in
+        headless mode.
+    */
+    public int getScreenHeight() {
+        return headless ? HEADLESS_HEIGHT : screen.getHeight();
+    }
+
+
+    /**
+        Gets the GraphicsConfiguration of the full screen window,
+        or null in headless mode.
+    */
+    public GraphicsConfiguration getGraphicsConfiguration() {
+        return headless ? null :
+            screen.getFullScreenWindow().getGraphicsConfiguration();
+    }
+
+
+    /**
+        Sets full screen mode and initiates and objects. In
+        headless mode, no window is opened.
     */
     public void init() {
+        if (headless) {
+            isRunning = true;
+            return;
+        }
+
         screen = new ScreenManager();
         DisplayMode displayMode =
             screen.findFirstCompatibleMode(POSSIBLE_MODES);
@@ -101,19 +194,121 @@ public abstract class GameCore extends JFrame {
 
 
     /**
-        Runs through the game loop until stop() is called.
+        Sets the number of simulation updates per second. Each
+        call to update() advances the game by 1 / tickRate
+        seconds, no matter how fast frames are drawn. Takes
+        effect at the next update, even while the game is
+        running.
+    */
+    public void setTickRate(int tickRate) {
+        this.tickRate = Math.max(1, Math.min(tickRate, 1000));
+    }
+
+
+    /**
+        Gets the number of simulation updates per second.
+    */
+    public int getTickRate() {
+        return tickRate;
+    }
+
+
+    /**
+        Gets the length of one simulation update in milliseconds,
+        rounded down. See tick().
+    */
+    public long getTickTime() {
+        return 1000 / tickRate;
+    }
+
+
+    /**
+        Gets the length of one simulation update in nanoseconds.
+    */
+    public long getTickNanos() {
+        return 1000000000L / tickRate;
+    }
+
+
+    /**
+        Runs one simulation update of the specified length in
+        nanoseconds. update() takes whole milliseconds, so when
+        the tick rate doesn't divide 1000 the remainder is
+        carried over: at 60 ticks per second, updates are 16 or
+        17 milliseconds long, and the game time doesn't drift.
+    */
+    private void tick(long tickNanos) {
+        long lastMillis = gameTime / 1000000L;
+        gameTime += tickNanos;
+        update(gameTime / 1000000L - lastMillis);
+    }
+
+
+    /**
+        Sets the maximum number of updates run before a frame is
+        drawn. If the loop falls further behind than this (for
+        example, after a long garbage collection pause), the
+        remaining time is dropped rather than simulated.
+    */
+    public void setMaxUpdatesPerFrame(int maxUpdatesPerFrame) {
+        this.maxUpdatesPerFrame = Math.max(1, maxUpdatesPerFrame);
+    }
+
+
+    /**
+        Sets the maximum number of frames drawn per second, or 0
+        to draw as fast as possible. Drawing less often does not
+        slow down the simulation.
+    */
+    public void setMaxFrameRate(int maxFrameRate) {
+        this.maxFrameRate = Math.max(0, maxFrameRate);
+    }
+
+
+    /**
+        Gets how far the current frame is between the last two
+        simulation updates, from 0 to 1. draw() uses this to
+        interpolate Sprite positions.
+    */
+    public float getInterpolation() {
+        return interpolation;
+    }
+
+
+    /**
+        Runs through the game loop until stop() is called. The
+        game state is updated in fixed steps of getTickNanos()
+        nanoseconds, and the screen is drawn up to the maximum
+        frame rate in between.
     */
     public void gameLoop() {
-        long startTime = System.currentTimeMillis();
-        long currTime = startTime;
+        if (headless) {
+            headlessLoop();
+            return;
+        }
+
+        long accumulator = 0;
+        long currTime = System.nanoTime();
 
         while (isRunning) {
-            long elapsedTime =
-                System.currentTimeMillis() - currTime;
-            currTime += elapsedTime;
+            long tickNanos = getTickNanos();
+            long newTime = System.nanoTime();
+            accumulator += newTime - currTime;
+            currTime = newTime;
 
-            // update
-            update(elapsedTime);
+            // update in fixed steps
+            int numUpdates = 0;
+            while (accumulator >= tickNanos && isRunning) {
+                tick(tickNanos);
+                accumulator -= tickNanos;
+                numUpdates++;
+                if (numUpdates >= maxUpdatesPerFrame) {
+                    // too far behind - drop the rest
+                    accumulator %= tickNanos;
+                    break;
+                }
+            }
+            interpolation = (float)accumulator / tickNanos;
 
             // draw the screen
             Graphics2D g = screen.getGraphics();
@@ -121,18 +316,89 @@ public abstract class GameCore extends JFrame {
             g.dispose();
             screen.update();
 
-            // don't take a nap! run as fast as possible
-            /*try {
-                Thread.sleep(20);
+            // take a nap until the next frame is due instead of
+            // spinning
+            if (maxFrameRate > 0) {
+                long sleepNanos = 1000000000L / maxFrameRate -
+                    (System.nanoTime() - currTime);
+                if (sleepNanos > 0) {
+                    try {
+                        Thread.sleep(sleepNanos / 1000000L,
+                            (int)(sleepNanos % 1000000L));
+                    }
+                    catch (InterruptedException ex) { }
+                }
+            }
+        }
+    }
+
+
+    /**
+        Runs the game without drawing until stop() is called or
+        the maximum number of ticks is reached. The number of
+        ticks per second is printed once a second and when the
+        loop ends.
+    */
+    public void headlessLoop() {
+        long startTime = System.nanoTime();
+        long nextTickTime = startTime;
+        long reportTime = startTime;
+        long numTicks = 0;
+        long reportTicks = 0;
+
+        while (isRunning &&
+            (headlessMaxTicks <= 0 || numTicks < headlessMaxTicks))
+        {
+            long tickNanos = getTickNanos();
+            if (headlessFixedRate) {
+                long sleepNanos = nextTickTime - System.nanoTime();
+                if (sleepNanos > 0) {
+                    try {
+                        Thread.sleep(sleepNanos / 1000000L,
+                            (int)(sleepNanos % 1000000L));
+                    }
+                    catch (InterruptedException ex) { }
+                }
+                nextTickTime += tickNanos;
+            }
+
+            tick(tickNanos);
+            numTicks++;
+
+            long currTime = System.nanoTime();
+            if (currTime - reportTime >= 1000000000L) {
+                ticksPerSecond = (numTicks - reportTicks) *
+                    1000000000f / (currTime - reportTime);
+                System.out.println("ticks/sec: " + ticksPerSecond);
+                reportTime = currTime;
+                reportTicks = numTicks;
             }
-            catch (InterruptedException ex) { }*/
         }
+
+        long totalTime = System.nanoTime() - startTime;
+        if (totalTime > 0) {
+            ticksPerSecond = numTicks * 1000000000f / totalTime;
+        }
+        System.out.println(numTicks + " ticks in " +
+            (totalTime / 1000000L) + " ms, average ticks/sec: " +
+            ticksPerSecond);
+    }
+
+
+    /**
+        Gets the most recently measured number of ticks per
+        second in headless mode.
+    */
+    public float getTicksPerSecond() {
+        return ticksPerSecond;
     }
 
 
     /**
         Updates the state of the game/animation based on the
-        amount of elapsed time that has passed.
+        amount of elapsed time that has passed. The game loop
+        passes the length of one tick, in milliseconds; see
+        tick().
     */
     public void update(long elapsedTime) {
         // do nothing
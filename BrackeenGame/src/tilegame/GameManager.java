@@ -3,10 +3,13 @@ package com.brackeen.javagamebook.tilegame;
 import java.awt.*;
 import javax.swing.*;
 import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
-import javax.swing.JFrame;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
-import javax.sound.midi.Sequence;
 import javax.sound.midi.Sequencer;
 import javax.sound.sampled.AudioFormat;
 
@@ -15,28 +18,120 @@ import com.brackeen.javagamebook.sound.*;
 import com.brackeen.javagamebook.input.*;
 import com.brackeen.javagamebook.test.GameCore;
 import com.brackeen.javagamebook.tilegame.sprites.*;
+import com.brackeen.javagamebook.util.AssetLoader;
+import com.brackeen.javagamebook.util.WorkStealingPool;
 
 /**
     GameManager manages all parts of the game.
 */
 public class GameManager extends GameCore {
 
+    /**
+        Runs the game. Arguments:
+        <ul><li>-headless: run without a window or sound,
+            printing the ticks per second
+        <li>-fixedrate: in headless mode, update at the tick rate
+            instead of as fast as possible
+        <li>-ticks n: in headless mode, stop after n updates
+        <li>-timings: print how long each asset took to load
+        <li>-audio file: in headless mode, render the sound
+            effects to a WAV file, in game time
+        <li>-audiometrics: print sound latency and underruns
+            every few seconds
+        <li>-stream: load maps a few chunks at a time as the
+            player moves, instead of all at once
+        </ul>
+    */
     public static void main(String[] args) {
-        new GameManager().run();
+        GameManager game = new GameManager();
+        boolean headless = false;
+        boolean fixedRate = false;
+        long maxTicks = 0;
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("-headless")) {
+                headless = true;
+            }
+            else if (args[i].equals("-fixedrate")) {
+                fixedRate = true;
+            }
+            else if (args[i].equals("-ticks") && i+1 < args.length) {
+                maxTicks = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-timings")) {
+                game.printLoadTimes = true;
+            }
+            else if (args[i].equals("-audio") && i+1 < args.length) {
+                game.audioFile = new File(args[++i]);
+            }
+            else if (args[i].equals("-audiometrics")) {
+                game.printAudioMetrics = true;
+            }
+            else if (args[i].equals("-stream")) {
+                game.streamMaps = true;
+            }
+        }
+        if (headless) {
+            System.setProperty("java.awt.headless", "true");
+            game.setHeadless(fixedRate, maxTicks);
+        }
+        game.run();
+        if (headless) {
+            // finish writing the audio file
+            game.stop();
+        }
     }
 
-    // uncompressed, 44100Hz, 16-bit, mono, signed, little-endian
+    // uncompressed, 44100Hz, 16-bit, stereo, signed, little-endian
     private static final AudioFormat PLAYBACK_FORMAT =
-        new AudioFormat(44100, 16, 1, true, false);
+        new AudioFormat(44100, 16, 2, true, false);
 
     private static final int DRUM_TRACK = 1;
 
+    // sounds mixed into the one line at once
+    private static final int MAX_VOICES = 32;
+
+    // how often the sound metrics are printed, in milliseconds
+    private static final long AUDIO_METRICS_PERIOD = 5000;
+
+    // columns of chunks a streamed map keeps loaded on each side
+    // of the screen
+    private static final int STREAM_MARGIN_CHUNKS = 2;
+
+    // how far away, in pixels, a sound from a sprite is heard
+    private static final int SOUND_DISTANCE = 800;
+
+    // the echo played when reaching the goal
+    private static final SoundFilterPool.Key GOAL_ECHO =
+        new SoundFilterPool.Key(EchoFilter.class,
+        new float[] { 2000, .7f });
+    private static final SoundFilterPool.Factory GOAL_ECHO_FACTORY =
+        new SoundFilterPool.Factory() {
+            public SoundFilter createFilter() {
+                return new EchoFilter(2000, .7f);
+            }
+        };
+
     public static final float GRAVITY = 0.002f;
 
+    // the fewest sprites worth giving their own update job
+    private static final int MIN_SPRITES_PER_JOB = 256;
+
     private Point pointCache = new Point();
+    private ArrayList spriteCache = new ArrayList();
+    private int updateThreads =
+        Runtime.getRuntime().availableProcessors();
+    private WorkStealingPool updatePool;
+    private UpdateJob[] updateJobs = new UpdateJob[0];
+    // the sprites being updated, and which of them were dead
+    private Sprite[] updateSprites = new Sprite[0];
+    private boolean[] deadSprites = new boolean[0];
     private TileMap map;
+    // the next map's background images, loading in the background,
+    // or null if the next map keeps the current background
+    private Future[] nextBackgrounds;
     private MidiPlayer midiPlayer;
     private SoundManager soundManager;
+    private SpatialAudio spatialAudio;
     private ResourceManager resourceManager;
     private Sound prizeSound;
     private Sound boopSound;
@@ -54,6 +149,10 @@ public class GameManager extends GameCore {
     private GameAction exit;
     private int finish = 0;
     private boolean bIsJumping;
+    private boolean printLoadTimes;
+    private File audioFile;
+    private boolean printAudioMetrics;
+    private boolean streamMaps;
    
     public void init() {
         super.init();
@@ -69,7 +168,14 @@ public class GameManager extends GameCore {
 
         // start resource manager
         resourceManager = new ResourceManager(
-        screen.getFullScreenWindow().getGraphicsConfiguration());
+            getGraphicsConfiguration());
+        if (streamMaps) {
+            // the most chunks across the screen can show at once
+            int screenChunks = (TileMapRenderer.pixelsToTiles(
+                getScreenWidth()) + 1) / TileMap.CHUNK_SIZE + 2;
+            resourceManager.setMapStreaming(screenChunks +
+                STREAM_MARGIN_CHUNKS * 2);
+        }
 
         // load resources
         renderer = new TileMapRenderer();
@@ -80,18 +186,32 @@ public class GameManager extends GameCore {
 
         // load first map
         map = resourceManager.loadNextMap();
+        if (printLoadTimes) {
+            resourceManager.getAssetLoader().printLoadTimes(
+                System.out);
+        }
 
-        // load sounds
-        soundManager = new SoundManager(PLAYBACK_FORMAT,10);
-        prizeSound = soundManager.getSound("sounds/YeahScience.wav");
-        boopSound = soundManager.getSound("sounds/YeahScience.wav");
+        if (!isHeadless()) {
+            initSound(new SoundManager(PLAYBACK_FORMAT, MAX_VOICES,
+                true));
 
-        // start music
-        midiPlayer = new MidiPlayer();
-        Sequence sequence =
-            midiPlayer.getSequence("sounds/poison.mid");
-        midiPlayer.play(sequence, true);
+            // start music
+            midiPlayer = new MidiPlayer();
+            midiPlayer.play("sounds/poison.mid", true);
+        }
+        else if (audioFile != null) {
+            try {
+                initSound(new SoundManager(PLAYBACK_FORMAT, MAX_VOICES,
+                    new WavFileSink(audioFile, PLAYBACK_FORMAT)));
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
         
+        // start loading the next level while this one is played
+        preloadNextLevel();
+
         //Inicializa la variable salto
         bIsJumping=false;
         
@@ -102,13 +222,168 @@ public class GameManager extends GameCore {
     }
 
 
+    /**
+        Sets up the SoundManager and loads the sounds.
+    */
+    private void initSound(SoundManager soundManager) {
+        this.soundManager = soundManager;
+        soundManager.setAdaptiveBuffering(true);
+        if (printAudioMetrics) {
+            soundManager.startMetricsLog(AUDIO_METRICS_PERIOD,
+                System.out);
+        }
+        spatialAudio = new SpatialAudio(soundManager, SOUND_DISTANCE);
+        prizeSound = soundManager.getSound("sounds/YeahScience.wav");
+        boopSound = soundManager.getSound("sounds/YeahScience.wav");
+    }
+
+
     /**
         Closes any resurces used by the GameManager.
     */
     public void stop() {
         super.stop();
-        midiPlayer.close();
-        soundManager.close();
+        if (updatePool != null) {
+            updatePool.close();
+            updatePool = null;
+        }
+        if (midiPlayer != null) {
+            midiPlayer.close();
+        }
+        if (soundManager != null) {
+            soundManager.close();
+        }
+    }
+
+
+    /**
+        Plays a sound with an optional SoundFilter and the
+        specified priority. Does nothing in headless mode.
+    */
+    private void playSound(Sound sound, SoundFilter filter,
+        int priority)
+    {
+        if (soundManager != null) {
+            soundManager.play(sound, filter, false, priority);
+        }
+    }
+
+
+    /**
+        Gets a SoundFilter from the SoundManager's filter pool.
+        Returns null in headless mode.
+    */
+    private SoundFilter getPooledFilter(Object key,
+        SoundFilterPool.Factory factory)
+    {
+        if (soundManager == null) {
+            return null;
+        }
+        return soundManager.getFilterPool().acquire(key, factory);
+    }
+
+
+    /**
+        Plays a sound coming from the specified Sprite, heard by
+        the player. Does nothing in headless mode.
+    */
+    private void playSoundAt(Sound sound, Sprite source,
+        int priority)
+    {
+        if (spatialAudio != null) {
+            spatialAudio.play(sound, source, priority);
+        }
+    }
+
+
+    /**
+        Plays a looping midi file. Does nothing in headless mode.
+    */
+    private void playMusic(String filename) {
+        if (midiPlayer != null) {
+            midiPlayer.play(filename, true);
+        }
+    }
+
+
+    /**
+        Gets the midi file that starts playing when the specified
+        map is loaded, or null if the music doesn't change.
+    */
+    private static String getMapMusic(int mapNumber) {
+        if (mapNumber == 3 || mapNumber == 4) {
+            return "sounds/poison.mid";
+        }
+        return null;
+    }
+
+
+    /**
+        Gets the background images of the specified map, or null
+        if the background doesn't change.
+    */
+    private static String[] getMapBackgrounds(int mapNumber) {
+        if (mapNumber == 3) {
+            return new String[] {
+                "Escenarios/Fondo03A.png",
+                "Escenarios/Fondo01B.png",
+                "Escenarios/Fondo03C.png"
+            };
+        }
+        if (mapNumber == 4) {
+            return new String[] {
+                "Escenarios/Fondo03A.png",
+                "Escenarios/Fondo03B.png",
+                "Escenarios/Fondo03C.png"
+            };
+        }
+        return null;
+    }
+
+
+    /**
+        Starts loading the next map, its background images and
+        its music in the background, so the level change doesn't
+        wait for them.
+    */
+    private void preloadNextLevel() {
+        int mapNumber = resourceManager.getNextMapNumber();
+        resourceManager.preloadNextMap();
+
+        nextBackgrounds = null;
+        String[] names = getMapBackgrounds(mapNumber);
+        if (names != null) {
+            nextBackgrounds = new Future[names.length];
+            for (int i=0; i<names.length; i++) {
+                nextBackgrounds[i] = resourceManager.preloadImage(names[i]);
+            }
+        }
+
+        String filename = getMapMusic(mapNumber);
+        if (midiPlayer != null && filename != null) {
+            midiPlayer.preloadSequence(filename);
+        }
+    }
+
+
+    /**
+        Switches to the preloaded next level: the map, the
+        background and the music change in the same frame. Then
+        starts preloading the level after it.
+    */
+    private void startNextLevel() {
+        map = resourceManager.loadNextMap();
+        if (nextBackgrounds != null) {
+            renderer.setBackground(
+                (Image)AssetLoader.get(nextBackgrounds[0]),
+                (Image)AssetLoader.get(nextBackgrounds[1]),
+                (Image)AssetLoader.get(nextBackgrounds[2]));
+        }
+        String filename = getMapMusic(resourceManager.GetCurrentMap());
+        if (filename != null) {
+            playMusic(filename);
+        }
+        preloadNextLevel();
     }
 
 
@@ -124,6 +399,11 @@ public class GameManager extends GameCore {
         gaPausa = new GameAction("Pausa", GameAction.DETECT_INITAL_PRESS_ONLY);
         gaOpciones =new GameAction("Opciones",
                 GameAction.DETECT_INITAL_PRESS_ONLY);
+
+        if (isHeadless()) {
+            // nothing to read input from
+            return;
+        }
  
         inputManager = new InputManager(
             screen.getFullScreenWindow());
@@ -186,7 +466,8 @@ public class GameManager extends GameCore {
 
     public void draw(Graphics2D g) {
         renderer.draw(g, map,
-            screen.getWidth(), screen.getHeight());
+            getScreenWidth(), getScreenHeight(),
+            getInterpolation());
     }
 
 
@@ -198,10 +479,35 @@ public class GameManager extends GameCore {
     }
 
 
+    /**
+        Sets the current map.
+    */
+    public void setMap(TileMap map) {
+        this.map = map;
+    }
+
+
+    /**
+        Sets the number of threads that update the sprites on
+        large maps. With 1 thread, every sprite is updated on the
+        game thread. The results are the same either way.
+    */
+    public void setUpdateThreads(int updateThreads) {
+        this.updateThreads = Math.max(1, updateThreads);
+        if (updatePool != null) {
+            updatePool.close();
+            updatePool = null;
+        }
+    }
+
+
     /**
         Turns on/off drum playback in the midi music (track 1).
     */
     public void toggleDrumPlayback() {
+        if (midiPlayer == null) {
+            return;
+        }
         Sequencer sequencer = midiPlayer.getSequencer();
         if (sequencer != null) {
             sequencer.setTrackMute(DRUM_TRACK,
@@ -217,6 +523,19 @@ public class GameManager extends GameCore {
     */
     public Point getTileCollision(Sprite sprite,
         float newX, float newY)
+    {
+        return getTileCollision(sprite, newX, newY, pointCache);
+    }
+
+
+    /**
+        Gets the tile that a Sprite collides with, like
+        getTileCollision(Sprite, float, float), but returns it in
+        the specified Point. Only reads the map, so it's safe to
+        call from several threads with different Points.
+    */
+    private Point getTileCollision(Sprite sprite,
+        float newX, float newY, Point tile)
     {
         float fromX = Math.min(sprite.getX(), newX);
         float fromY = Math.min(sprite.getY(), newY);
@@ -235,11 +554,11 @@ public class GameManager extends GameCore {
         for (int x=fromTileX; x<=toTileX; x++) {
             for (int y=fromTileY; y<=toTileY; y++) {
                 if (x < 0 || x >= map.getWidth() ||
-                    map.getTile(x, y) != null)
+                    map.isSolid(x, y))
                 {
                     // collision found, return the tile
-                    pointCache.setLocation(x, y);
-                    return pointCache;
+                    tile.setLocation(x, y);
+                    return tile;
                 }
             }
         }
@@ -285,21 +604,32 @@ public class GameManager extends GameCore {
     /**
         Gets the Sprite that collides with the specified Sprite,
         or null if no Sprite collides with the specified Sprite.
+        If several Sprites collide, the first in the map's list
+        of Sprites is returned.
     */
     public Sprite getSpriteCollision(Sprite sprite) {
 
-        // run through the list of Sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite otherSprite = (Sprite)i.next();
+        // run through the Sprites near this Sprite
+        spriteCache.clear();
+        map.getSprites(Math.round(sprite.getX()),
+            Math.round(sprite.getY()),
+            sprite.getWidth(), sprite.getHeight(), spriteCache);
+        Sprite collision = null;
+        int collisionOrder = 0;
+        for (int i=0; i<spriteCache.size(); i++) {
+            Sprite otherSprite = (Sprite)spriteCache.get(i);
             if (isCollision(sprite, otherSprite)) {
-                // collision found, return the Sprite
-                return otherSprite;
+                // the grid's order isn't the list's, so keep the
+                // Sprite that comes first in the list
+                int order = map.getSpriteOrder(otherSprite);
+                if (collision == null || order < collisionOrder) {
+                    collision = otherSprite;
+                    collisionOrder = order;
+                }
             }
         }
-
-        // no collision found
-        return null;
+        spriteCache.clear();
+        return collision;
     }
 
 
@@ -310,6 +640,15 @@ public class GameManager extends GameCore {
     public void update(long elapsedTime) {
         Creature player = (Creature)map.getPlayer();
 
+        // remember where everything was, so draw() can
+        // interpolate between this update and the next
+        player.savePosition();
+        map.getPhysics().savePositions();
+
+        // when rendering sound offline, mix this tick's worth
+        if (soundManager != null) {
+            soundManager.render(elapsedTime);
+        }
 
         // player is dead! start map over
         if (player.getState() == Creature.STATE_DEAD) {
@@ -328,6 +667,18 @@ public class GameManager extends GameCore {
         // get keyboard/mouse input
         checkInput(elapsedTime);
 
+        // load the parts of a streamed map near the screen
+        MapStream stream = map.getStream();
+        if (stream != null) {
+            int firstTileX = renderer.getFirstVisibleTileX(map,
+                getScreenWidth());
+            stream.update(firstTileX, firstTileX +
+                TileMapRenderer.pixelsToTiles(getScreenWidth()) + 1);
+        }
+
+        // wake up creatures that scrolled onto the screen
+        renderer.wakeUpCreatures(map, getScreenWidth());
+
         // update player
         updateCreature(player, elapsedTime);
         player.update(elapsedTime);
@@ -335,17 +686,97 @@ public class GameManager extends GameCore {
         
     
 
-        // update other sprites
+        updateSprites(elapsedTime);
+
+        // let the audio thread know where everything is now
+        if (spatialAudio != null) {
+            spatialAudio.setListener(map.getPlayer());
+            spatialAudio.publish();
+        }
+    }
+
+
+    /**
+        Updates every Sprite on the map except the player.
+        <p>Gravity and velocity are applied to every sprite at
+        once. Then each sprite is moved, checking tile collisions,
+        and its animation is updated. This only reads the map and
+        changes the sprite itself, so on large maps the sprites
+        are split into jobs that run on several threads. Finally,
+        on the game thread, dead creatures are removed and the
+        map's sprite grid is updated, in map order. The result is
+        the same as updating the sprites one at a time.
+    */
+    public void updateSprites(long elapsedTime) {
+        // apply gravity and velocity to all other sprites at once
+        PhysicsStore physics = map.getPhysics();
+        physics.applyGravity(GRAVITY, elapsedTime);
+        physics.predictPositions(elapsedTime);
+
+        // take the sprites in map order
+        int count = 0;
         Iterator i = map.getSprites();
         while (i.hasNext()) {
+            if (count == updateSprites.length) {
+                growUpdateSprites();
+            }
+            updateSprites[count++] = (Sprite)i.next();
+        }
+
+        // move the sprites
+        int numJobs = Math.min(updateThreads,
+            count / MIN_SPRITES_PER_JOB);
+        if (numJobs < 2) {
+            moveSprites(0, count, elapsedTime, pointCache);
+        }
+        else {
+            runUpdateJobs(numJobs, count, elapsedTime);
+        }
+
+        // remove dead creatures and update the grid, in order
+        i = map.getSprites();
+        for (int j=0; j<count; j++) {
             Sprite sprite = (Sprite)i.next();
+            if (deadSprites[j]) {
+                i.remove();
+            }
+            map.updateSprite(sprite);
+            updateSprites[j] = null;
+        }
+    }
+
+
+    private void growUpdateSprites() {
+        int length = Math.max(16, updateSprites.length * 2);
+        Sprite[] newSprites = new Sprite[length];
+        System.arraycopy(updateSprites, 0, newSprites, 0,
+            updateSprites.length);
+        updateSprites = newSprites;
+        deadSprites = new boolean[length];
+    }
+
+
+    /**
+        Moves and updates the sprites from start up to end,
+        remembering which creatures were already dead.
+    */
+    private void moveSprites(int start, int end, long elapsedTime,
+        Point tile)
+    {
+        PhysicsStore physics = map.getPhysics();
+        for (int j=start; j<end; j++) {
+            Sprite sprite = updateSprites[j];
+            deadSprites[j] = false;
             if (sprite instanceof Creature) {
                 Creature creature = (Creature)sprite;
                 if (creature.getState() == Creature.STATE_DEAD) {
-                    i.remove();
+                    deadSprites[j] = true;
                 }
                 else {
-                    updateCreature(creature, elapsedTime);
+                    moveCreatureX(creature, physics.getNextX(creature),
+                        tile);
+                    moveCreatureY(creature, physics.getNextY(creature),
+                        tile);
                 }
             }
             // normal update
@@ -354,6 +785,58 @@ public class GameManager extends GameCore {
     }
 
 
+    /**
+        Splits the sprites into jobs of about the same size. The
+        first job runs on the game thread, and the rest on the
+        update pool.
+    */
+    private void runUpdateJobs(int numJobs, int count,
+        long elapsedTime)
+    {
+        if (updatePool == null) {
+            updatePool = new WorkStealingPool("Update",
+                updateThreads - 1);
+        }
+        if (updateJobs.length < numJobs) {
+            updateJobs = new UpdateJob[numJobs];
+            for (int j=0; j<numJobs; j++) {
+                updateJobs[j] = new UpdateJob();
+            }
+        }
+
+        CompletableFuture[] futures = new CompletableFuture[numJobs];
+        for (int j=0; j<numJobs; j++) {
+            UpdateJob job = updateJobs[j];
+            job.start = (int)((long)count * j / numJobs);
+            job.end = (int)((long)count * (j + 1) / numJobs);
+            job.elapsedTime = elapsedTime;
+            if (j > 0) {
+                futures[j] = updatePool.submit(job);
+            }
+        }
+        updateJobs[0].run();
+        for (int j=1; j<numJobs; j++) {
+            futures[j].join();
+        }
+    }
+
+
+    /**
+        A range of sprites to move, with its own Point for tile
+        collisions.
+    */
+    private class UpdateJob implements Runnable {
+        int start;
+        int end;
+        long elapsedTime;
+        Point tile = new Point();
+
+        public void run() {
+            moveSprites(start, end, elapsedTime, tile);
+        }
+    }
+
+
     /**
         Updates the creature, applying gravity for creatures that
         aren't flying, and checks collisions.
@@ -368,12 +851,25 @@ public class GameManager extends GameCore {
                 GRAVITY * elapsedTime);
         }
 
-        // change x
+        moveCreatureX(creature,
+            creature.getX() + creature.getVelocityX() * elapsedTime,
+            pointCache);
+        moveCreatureY(creature,
+            creature.getY() + creature.getVelocityY() * elapsedTime,
+            pointCache);
+    }
+
+
+    /**
+        Moves a Creature to the specified x position, stopping
+        it at the first tile it collides with. The Point is used
+        for the tile collision.
+    */
+    private void moveCreatureX(Creature creature, float newX,
+        Point tile)
+    {
         float dx = creature.getVelocityX();
-        float oldX = creature.getX();
-        float newX = oldX + dx * elapsedTime;
-        Point tile =
-            getTileCollision(creature, newX, creature.getY());
+        tile = getTileCollision(creature, newX, creature.getY(), tile);
         if (tile == null) {
             creature.setX(newX);
         }
@@ -393,12 +889,20 @@ public class GameManager extends GameCore {
         if (creature instanceof Player) {
             checkPlayerCollision((Player)creature, false);
         }
+    }
+
 
-        // change y
+    /**
+        Moves a Creature to the specified y position, stopping
+        it at the first tile it collides with. The Point is used
+        for the tile collision.
+    */
+    private void moveCreatureY(Creature creature, float newY,
+        Point tile)
+    {
         float dy = creature.getVelocityY();
         float oldY = creature.getY();
-        float newY = oldY + dy * elapsedTime;
-        tile = getTileCollision(creature, creature.getX(), newY);
+        tile = getTileCollision(creature, creature.getX(), newY, tile);
         if (tile == null) {
             creature.setY(newY);
         }
@@ -446,7 +950,8 @@ public class GameManager extends GameCore {
             Creature badguy = (Creature)collisionSprite;
             if (canKill) {
                 // kill the badguy and make player bounce
-                soundManager.play(boopSound);
+                playSoundAt(boopSound, badguy,
+                    SoundManager.PRIORITY_LOW);
                 badguy.setState(Creature.STATE_DYING);
                 player.setY(badguy.getY() - player.getHeight());
                 player.jump(true);
@@ -474,13 +979,15 @@ public class GameManager extends GameCore {
             map.removeSprite(powerUp);
             // do something here, like give the player points            
             finish++;
-            soundManager.play(prizeSound);
+            playSoundAt(prizeSound, powerUp,
+                SoundManager.PRIORITY_NORMAL);
         }
         else if (powerUp instanceof PowerUp.Music) {
             // remove it from the map
              map.removeSprite(powerUp);
             // change the music
-            soundManager.play(prizeSound);
+            playSound(prizeSound, null,
+                SoundManager.PRIORITY_NORMAL);
             toggleDrumPlayback();
         }
         else if (powerUp instanceof PowerUp.Goal) {
@@ -488,28 +995,10 @@ public class GameManager extends GameCore {
              // remove it from the map
             map.removeSprite(powerUp);
             // advance to next map
-            soundManager.play(prizeSound,
-                
-                new EchoFilter(2000, .7f), false);
+            playSound(prizeSound, getPooledFilter(GOAL_ECHO,
+                GOAL_ECHO_FACTORY), SoundManager.PRIORITY_HIGH);
             finish = 0;
-           map=resourceManager.loadNextMap();
-            if(resourceManager.GetCurrentMap() == 3) {
-                renderer.setBackground(
-                    resourceManager.loadImage("Escenarios/Fondo03A.png"),
-                    resourceManager.loadImage("Escenarios/Fondo01B.png"),                    
-                    resourceManager.loadImage("Escenarios/Fondo03C.png"));
-                midiPlayer.play(midiPlayer.getSequence("sounds/poison.mid"), 
-                        true);
-            }
-            if(resourceManager.GetCurrentMap() == 4) {
-                renderer.setBackground(
-                    resourceManager.loadImage("Escenarios/Fondo03A.png"),
-                    resourceManager.loadImage("Escenarios/Fondo03B.png"),
-                    resourceManager.loadImage("Escenarios/Fondo03C.png"));
-                midiPlayer.play(midiPlayer.getSequence("sounds/poison.mid"), 
-                        true);
-            }
-            else{}
+            startNextLevel();
                 
             }
         }
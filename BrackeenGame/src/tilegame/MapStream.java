@@ -0,0 +1,407 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+import com.brackeen.javagamebook.util.AssetLoader;
+
+/**
+    The MapStream class loads a map a column of chunks at a time
+    as the player moves through it, instead of all at once.
+    Opening a map only finds where each line of the map file
+    starts. The tiles and Sprites of a column of chunks are read
+    from the file when the column comes near the screen, and
+    dropped when it falls behind, so only a window a few chunks
+    across is ever in memory. Long maps take no more memory, or
+    time to open, than short ones (apart from finding the lines).
+    <p>Columns are read on the ResourceManager's AssetLoader.
+    Call update() every frame with the tiles on screen: it moves
+    the window, puts the columns that finished loading in the
+    map, and waits only for columns that are on screen but not
+    loaded yet.
+    <p>A column that falls out of the window and comes back is
+    read again. Its Sprites come back at their places in the map
+    file, except for the ones that are gone for good: Sprites
+    removed from the map (collected power ups, dead creatures)
+    and creatures that had walked out of the column when it
+    left the window. A creature that walked into another column
+    is removed when that column leaves the window. Remembering
+    which Sprites are gone takes a few bits per column visited.
+    <p>The columns that aren't in memory are solid (see
+    TileMap.isSolid()), so creatures turn around at the edges of
+    the window instead of falling through the map.
+    <p>Each character of the map file must be one byte.
+    @see TileMap
+*/
+public class MapStream {
+
+    private ResourceManager resourceManager;
+    private String filename;
+    private TilePalette palette;
+    private TileMap map;
+    private int windowChunks;
+    // where each line (excluding comments) starts in the file,
+    // and its length in characters
+    private long[] lineOffsets;
+    private int[] lineLengths;
+    private int numLines;
+    // the first column of chunks in the window, or -1
+    private int firstChunk;
+    // columns being read, by their place in the window
+    private Future[] loading;
+    private int[] loadingChunks;
+    // Sprite -> Spawn, for the Sprites from columns in the window
+    private IdentityHashMap spawns;
+    // column -> BitSet of the Sprites (by spawn index) that are
+    // gone for good
+    private HashMap goneSprites;
+
+    /**
+        Opens a map file. The TileMap from getMap() keeps the
+        specified number of chunks across in memory, and is
+        empty until update() is called.
+    */
+    public MapStream(ResourceManager resourceManager,
+        String filename, TilePalette palette, int windowChunks)
+        throws IOException
+    {
+        this.resourceManager = resourceManager;
+        this.filename = filename;
+        this.palette = palette;
+        findLines();
+
+        int width = 0;
+        for (int i=0; i<numLines; i++) {
+            width = Math.max(width, lineLengths[i]);
+        }
+        int chunksWide =
+            (width + TileMap.CHUNK_SIZE - 1) >> TileMap.CHUNK_SIZE_BITS;
+        this.windowChunks = Math.max(1, Math.min(windowChunks,
+            chunksWide));
+        map = new TileMap(width, numLines, palette,
+            this.windowChunks);
+        map.setStream(this);
+
+        firstChunk = -1;
+        spawns = new IdentityHashMap();
+        goneSprites = new HashMap();
+        loading = new Future[this.windowChunks];
+        loadingChunks = new int[this.windowChunks];
+        for (int i=0; i<loadingChunks.length; i++) {
+            loadingChunks[i] = -1;
+        }
+    }
+
+
+    /**
+        Gets the TileMap this MapStream loads.
+    */
+    public TileMap getMap() {
+        return map;
+    }
+
+
+    /**
+        Reads through the map file once, remembering where every
+        line except for comments starts.
+    */
+    private void findLines() throws IOException {
+        lineOffsets = new long[64];
+        lineLengths = new int[64];
+        numLines = 0;
+
+        InputStream in = new BufferedInputStream(
+            new FileInputStream(filename));
+        try {
+            long offset = 0;
+            long lineStart = 0;
+            int length = 0;
+            boolean comment = false;
+            int ch;
+            while ((ch = in.read()) != -1) {
+                if (ch == '\n') {
+                    if (!comment) {
+                        addLine(lineStart, length);
+                    }
+                    lineStart = offset + 1;
+                    length = 0;
+                    comment = false;
+                }
+                else if (ch != '\r') {
+                    if (length == 0 && offset == lineStart &&
+                        ch == '#')
+                    {
+                        comment = true;
+                    }
+                    length++;
+                }
+                offset++;
+            }
+            // last line, without a line break
+            if (offset > lineStart && !comment) {
+                addLine(lineStart, length);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    private void addLine(long offset, int length) {
+        if (numLines == lineOffsets.length) {
+            long[] newOffsets = new long[numLines * 2];
+            int[] newLengths = new int[numLines * 2];
+            System.arraycopy(lineOffsets, 0, newOffsets, 0, numLines);
+            System.arraycopy(lineLengths, 0, newLengths, 0, numLines);
+            lineOffsets = newOffsets;
+            lineLengths = newLengths;
+        }
+        lineOffsets[numLines] = offset;
+        lineLengths[numLines] = length;
+        numLines++;
+    }
+
+
+    /**
+        Loads the map around the screen. The window is centered
+        on the specified tile columns, which are on screen; the
+        chunks they're in are loaded before this method returns.
+        Call from the thread that updates the map.
+    */
+    public void update(int firstTileX, int lastTileX) {
+        int chunksWide = map.getChunksWide();
+        int firstVisible = Math.max(0,
+            firstTileX >> TileMap.CHUNK_SIZE_BITS);
+        int lastVisible = Math.max(firstVisible, Math.min(chunksWide - 1,
+            lastTileX >> TileMap.CHUNK_SIZE_BITS));
+
+        // center the window on the screen
+        int first = (firstVisible + lastVisible + 1 - windowChunks) / 2;
+        first = Math.max(0, Math.min(first, chunksWide - windowChunks));
+        if (first != firstChunk) {
+            moveWindow(first);
+        }
+
+        int last = Math.min(first + windowChunks, chunksWide) - 1;
+        for (int chunkX=first; chunkX<=last; chunkX++) {
+            if (map.isChunkResident(chunkX)) {
+                continue;
+            }
+            int slot = chunkX % windowChunks;
+            if (loadingChunks[slot] != chunkX) {
+                load(chunkX);
+            }
+            // put finished columns in, and wait for visible ones
+            if (loading[slot].isDone() ||
+                (chunkX >= firstVisible && chunkX <= lastVisible))
+            {
+                Chunk chunk = (Chunk)AssetLoader.get(loading[slot]);
+                loading[slot] = null;
+                loadingChunks[slot] = -1;
+                addChunk(chunkX, chunk);
+            }
+        }
+    }
+
+
+    /**
+        Moves the window to start at the specified column,
+        removing the columns and Sprites that are no longer in
+        it.
+    */
+    private void moveWindow(int first) {
+        int last = first + windowChunks - 1;
+        forgetSpawns(first, last);
+        if (firstChunk >= 0) {
+            for (int chunkX=firstChunk; chunkX<firstChunk + windowChunks;
+                chunkX++)
+            {
+                if (chunkX < first || chunkX > last) {
+                    map.removeChunk(chunkX);
+                }
+            }
+        }
+        firstChunk = first;
+        map.setWindowStart(first);
+
+        int left = TileMapRenderer.tilesToPixels(
+            first << TileMap.CHUNK_SIZE_BITS);
+        int right = TileMapRenderer.tilesToPixels(
+            (last + 1) << TileMap.CHUNK_SIZE_BITS);
+        Iterator i = map.getSprites();
+        while (i.hasNext()) {
+            Sprite sprite = (Sprite)i.next();
+            float x = sprite.getX() + sprite.getWidth() / 2;
+            if (x < left || x >= right) {
+                i.remove();
+            }
+        }
+    }
+
+
+    /**
+        Stops keeping track of the Sprites from the columns that
+        leave the window, and remembers which of them must not
+        come back when their column is read again.
+    */
+    private void forgetSpawns(int first, int last) {
+        Iterator i = spawns.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry entry = (Map.Entry)i.next();
+            Sprite sprite = (Sprite)entry.getKey();
+            Spawn spawn = (Spawn)entry.getValue();
+            if (spawn.chunkX >= first && spawn.chunkX <= last) {
+                continue;
+            }
+            i.remove();
+
+            // it only comes back if it's still alive in its column
+            boolean inMap =
+                (sprite.getPhysicsStore() == map.getPhysics());
+            boolean alive = !(sprite instanceof Creature) ||
+                ((Creature)sprite).getState() == Creature.STATE_NORMAL;
+            int chunkX = TileMapRenderer.pixelsToTiles(
+                sprite.getX() + sprite.getWidth() / 2) >>
+                TileMap.CHUNK_SIZE_BITS;
+            if (!inMap || !alive || chunkX != spawn.chunkX) {
+                Integer key = Integer.valueOf(spawn.chunkX);
+                BitSet gone = (BitSet)goneSprites.get(key);
+                if (gone == null) {
+                    gone = new BitSet();
+                    goneSprites.put(key, gone);
+                }
+                gone.set(spawn.index);
+            }
+        }
+    }
+
+
+    /**
+        Starts reading a column of chunks in the background,
+        instead of whatever column was being read for its place
+        in the window.
+    */
+    private void load(final int chunkX) {
+        int slot = chunkX % windowChunks;
+        if (loading[slot] != null) {
+            loading[slot].cancel(false);
+        }
+        loadingChunks[slot] = chunkX;
+        loading[slot] = resourceManager.getAssetLoader().getPool()
+            .submit(new Callable() {
+                public Object call() {
+                    try {
+                        return readChunk(chunkX);
+                    }
+                    catch (IOException ex) {
+                        // leave the column empty
+                        ex.printStackTrace();
+                        return null;
+                    }
+                }
+            });
+    }
+
+
+    /**
+        Puts a column of chunks read by readChunk() in the map.
+    */
+    private void addChunk(int chunkX, Chunk chunk) {
+        if (chunk == null) {
+            chunk = new Chunk(numLines);
+        }
+        map.setChunk(chunkX, chunk.tiles);
+        BitSet gone = (BitSet)goneSprites.get(Integer.valueOf(chunkX));
+        for (int i=0; i<chunk.sprites.size(); i++) {
+            if (gone != null && gone.get(i)) {
+                continue;
+            }
+            Sprite sprite = (Sprite)chunk.sprites.get(i);
+            map.addSprite(sprite);
+            spawns.put(sprite, new Spawn(chunkX, i));
+        }
+    }
+
+
+    /**
+        Reads the tiles and Sprites of a column of chunks from
+        the map file. Safe to call from any thread.
+    */
+    private Chunk readChunk(int chunkX) throws IOException {
+        int firstX = chunkX << TileMap.CHUNK_SIZE_BITS;
+        Chunk chunk = new Chunk(numLines);
+        byte[] line = new byte[TileMap.CHUNK_SIZE];
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            for (int y=0; y<numLines; y++) {
+                int length = Math.min(TileMap.CHUNK_SIZE,
+                    lineLengths[y] - firstX);
+                if (length <= 0) {
+                    continue;
+                }
+                file.seek(lineOffsets[y] + firstX);
+                file.readFully(line, 0, length);
+                for (int x=0; x<length; x++) {
+                    char ch = (char)(line[x] & 0xff);
+                    short tile = palette.getId(ch);
+                    if (tile != TilePalette.EMPTY) {
+                        chunk.tiles[y * TileMap.CHUNK_SIZE + x] = tile;
+                    }
+                    else {
+                        Sprite sprite = resourceManager.createSprite(ch,
+                            firstX + x, y);
+                        if (sprite != null) {
+                            chunk.sprites.add(sprite);
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            file.close();
+        }
+        return chunk;
+    }
+
+
+    /**
+        Where a Sprite came from: its column, and its index in
+        the column's Sprites.
+    */
+    private static class Spawn {
+
+        int chunkX;
+        int index;
+
+        public Spawn(int chunkX, int index) {
+            this.chunkX = chunkX;
+            this.index = index;
+        }
+    }
+
+
+    /**
+        The tiles and Sprites of a column of chunks, in the
+        order they are in the map file.
+    */
+    private static class Chunk {
+
+        short[] tiles;
+        ArrayList sprites;
+
+        public Chunk(int height) {
+            tiles = new short[TileMap.CHUNK_SIZE * height];
+            sprites = new ArrayList();
+        }
+    }
+}
@@ -2,27 +2,160 @@ package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 
 import com.brackeen.javagamebook.graphics.*;
 import com.brackeen.javagamebook.tilegame.sprites.*;
+import com.brackeen.javagamebook.util.AssetLoader;
 
 
 /**
     The ResourceManager class loads and manages tile Images and
     "host" Sprites used in the game. Game Sprites are cloned from
     "host" Sprites.
+    <p>Tile, creature and power up images are packed into a
+    TextureAtlas. The atlas is saved in the cache/ directory the
+    first time the game runs, and later runs load the few atlas
+    pages instead of every image. The cached atlas is rebuilt if
+    any of its images changes.
+    <p>Images are decoded in parallel by an AssetLoader. Loading
+    a map only waits for the images that map needs; the rest
+    keep loading in the background.
+    <p>The next map can be loaded in the background with
+    preloadNextMap() while the current one is played, so
+    loadNextMap() only has to hand it over.
+    <p>With setMapStreaming(), maps are loaded a column of chunks
+    at a time by a MapStream instead of all at once.
 */
 public class ResourceManager {
 
-    private ArrayList tiles;
-    private ArrayList alTiles2;
-    private ArrayList alTiles3;
-    private ArrayList alSpecialTiles;
+    // map-file characters of the special (water) tiles
+    private static final char[] SPECIAL_TILES = {'9', ';', '=', '@'};
+
+    // tile sets, by the suffix of their image files
+    private static final int[] TILE_SETS = {1, 3, 5};
+
+    // where the TextureAtlas is cached
+    private static final File ATLAS_DIR = new File("cache");
+    private static final String ATLAS_NAME = "atlas";
+    // added to the name of mirrored atlas images
+    private static final String MIRROR_SUFFIX = "#mirror";
+
+    // creature walking frames, 3 per creature
+    private static final String[] WALKING_IMAGES = {
+        "Pomf/PomfW1.png",
+        "Pomf/PomfW2.png",
+        "Pomf/PomfW3.png",
+        "Enemigo2/Enemigo2W1.png",
+        "Enemigo2/Enemigo2W2.png",
+        "Enemigo2/Enemigo2W3.png",
+        "Enemigo1/Enemigo1W1.png",
+        "Enemigo1/Enemigo1W2.png",
+        "Enemigo1/Enemigo1W3.png",
+        "Enemigo3/Enemigo3W1.png",
+        "Enemigo3/Enemigo3W2.png",
+        "Enemigo3/Enemigo3W3.png",
+        "Enemigo4/Enemigo4W1.png",
+        "Enemigo4/Enemigo4W2.png",
+        "Enemigo4/Enemigo4W3.png",
+        "Enemigo6/Enemigo6W1.png",
+        "Enemigo6/Enemigo6W2.png",
+        "Enemigo6/Enemigo6W3.png",
+    };
+
+    // creature dying frames, 9 per creature
+    private static final String[] DEAD_IMAGES = {
+        "Pomf/PomfD1.png",
+        "Pomf/PomfD2.png",
+        "Pomf/PomfD3.png",
+        "Pomf/PomfD4.png",
+        "Pomf/PomfD5.png",
+        "Pomf/PomfD6.png",
+        "Pomf/PomfD7.png",
+        "Pomf/PomfD8.png",
+        "Pomf/PomfD3.png",
+        "Enemigo2/Enemigo2D1.png",
+        "Enemigo2/Enemigo2D2.png",
+        "Enemigo2/Enemigo2D3.png",
+        "Enemigo2/Enemigo2D4.png",
+        "Enemigo2/Enemigo2D5.png",
+        "Enemigo2/Enemigo2D6.png",
+        "Enemigo2/Enemigo2D7.png",
+        "Enemigo2/Enemigo2D8.png",
+        "Enemigo2/Enemigo2D9.png",
+        "Enemigo1/Enemigo1D1.png",
+        "Enemigo1/Enemigo1D2.png",
+        "Enemigo1/Enemigo1D3.png",
+        "Enemigo1/Enemigo1D4.png",
+        "Enemigo1/Enemigo1D5.png",
+        "Enemigo1/Enemigo1D6.png",
+        "Enemigo1/Enemigo1D7.png",
+        "Enemigo1/Enemigo1D8.png",
+        "Enemigo1/Enemigo1D9.png",
+        "Enemigo3/Enemigo3D1.png",
+        "Enemigo3/Enemigo3D2.png",
+        "Enemigo3/Enemigo3D3.png",
+        "Enemigo3/Enemigo3D4.png",
+        "Enemigo3/Enemigo3D5.png",
+        "Enemigo3/Enemigo3D6.png",
+        "Enemigo3/Enemigo3D7.png",
+        "Enemigo3/Enemigo3D8.png",
+        "Enemigo3/Enemigo3D9.png",
+        "Enemigo4/Enemigo4D1.png",
+        "Enemigo4/Enemigo4D2.png",
+        "Enemigo4/Enemigo4D3.png",
+        "Enemigo4/Enemigo4D4.png",
+        "Enemigo4/Enemigo4D5.png",
+        "Enemigo4/Enemigo4D6.png",
+        "Enemigo4/Enemigo4D7.png",
+        "Enemigo4/Enemigo4D8.png",
+        "Enemigo4/Enemigo4D9.png",
+        "Enemigo6/Enemigo6D1.png",
+        "Enemigo6/Enemigo6D2.png",
+        "Enemigo6/Enemigo6D3.png",
+        "Enemigo6/Enemigo6D4.png",
+        "Enemigo6/Enemigo6D5.png",
+        "Enemigo6/Enemigo6D6.png",
+        "Enemigo6/Enemigo6D7.png",
+        "Enemigo6/Enemigo6D8.png",
+        "Enemigo6/Enemigo6D9.png",
+    };
+
+    // Pomf's jumping frames
+    private static final String[] JUMPING_IMAGES = {
+        "Pomf/PomfJ1.png",
+        "Pomf/PomfJ2.png",
+        "Pomf/PomfJ3.png",
+        "Pomf/PomfJ4.png",
+    };
+
+    // Futures of the TilePalettes, one per tile set; map n uses
+    // palette n-1
+    private Future[] palettes;
+    // palette for maps without a tile set (special tiles only)
+    private Future specialPalette;
     private int currentMap;
+    // the next map, loading in the background, and its number
+    private Future nextMap;
+    private int nextMapNumber;
+    // chunks across kept in memory by streamed maps, or 0
+    private int streamWindow;
     private GraphicsConfiguration gc;
+    private TextureAtlas atlas;
+    private AssetLoader loader;
+    // Futures of packed images and mirror images, by name
+    private HashMap packedImages;
+    private HashMap mirrorImages;
+    // Futures that finish when the host sprites are created
+    private Future creatureSprites;
+    private Future powerUpSprites;
 
     // host sprites used for cloning
     private Sprite playerSprite;
@@ -37,13 +170,50 @@ public class ResourceManager {
     
     /**
         Creates a new ResourceManager with the specified
-        GraphicsConfiguration.
+        GraphicsConfiguration. If the GraphicsConfiguration is
+        null (headless mode), images are loaded into plain
+        BufferedImages.
     */
     public ResourceManager(GraphicsConfiguration gc) {
         this.gc = gc;
+        loader = new AssetLoader();
+        packedImages = new HashMap();
+        mirrorImages = new HashMap();
+        loadAtlas();
         loadTileImages();
         loadCreatureSprites();
         loadPowerUpSprites();
+
+        // save the atlas once everything is packed
+        loader.submit("saving atlas", new Callable() {
+            public Object call() {
+                for (int i=0; i<palettes.length; i++) {
+                    AssetLoader.get(palettes[i]);
+                }
+                AssetLoader.get(specialPalette);
+                waitForSprites();
+                saveAtlas();
+                return null;
+            }
+        });
+    }
+
+
+    /**
+        Gets the AssetLoader that loads this ResourceManager's
+        images. Useful for printing load times.
+    */
+    public AssetLoader getAssetLoader() {
+        return loader;
+    }
+
+
+    /**
+        Waits for the "host" Sprites to finish loading.
+    */
+    private void waitForSprites() {
+        AssetLoader.get(creatureSprites);
+        AssetLoader.get(powerUpSprites);
     }
     
     public int GetCurrentMap() {
@@ -51,16 +221,136 @@ public class ResourceManager {
     }
 
 
+    /**
+        Starts loading an image from the images/ directory in the
+        background. The Future's result is the Image.
+    */
+    public Future preloadImage(final String name) {
+        return loader.submit(name, new Callable() {
+            public Object call() {
+                return loadImage(name);
+            }
+        });
+    }
+
+
     /**
         Gets an image from the images/ directory.
     */
     public Image loadImage(String name) {
+        if (gc == null) {
+            // headless - decode straight into a BufferedImage
+            return readImage(name);
+        }
         String filename = "images/" + name;
         return new ImageIcon(filename).getImage();
     }
 
 
+    /**
+        Decodes an image from the images/ directory into a
+        BufferedImage. Safe to call from any thread.
+    */
+    private Image readImage(String name) {
+        try {
+            return ImageIO.read(new File("images/" + name));
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+
+    /**
+        Gets an image from the images/ directory, packed into
+        the TextureAtlas. Returns an image of the atlas Region.
+        Waits for the image if it is still loading.
+    */
+    public Image loadPackedImage(String name) {
+        return (Image)AssetLoader.get(requestPackedImage(name));
+    }
+
+
+    /**
+        Starts loading an image into the TextureAtlas, unless it
+        was already requested. Returns a Future of the image.
+    */
+    private Future requestPackedImage(final String name) {
+        synchronized (packedImages) {
+            Future future = (Future)packedImages.get(name);
+            if (future == null) {
+                future = loader.submit(name, new Callable() {
+                    public Object call() {
+                        TextureAtlas.Region region =
+                            atlas.getRegion(name);
+                        if (region == null) {
+                            Image image = readImage(name);
+                            region = atlas.add(name, image);
+                            if (region == null) {
+                                // doesn't fit in the atlas
+                                return image;
+                            }
+                        }
+                        return region.getImage();
+                    }
+                });
+                packedImages.put(name, future);
+            }
+            return future;
+        }
+    }
+
+
+    /**
+        Starts creating the mirror image of a packed image,
+        unless it was already requested. Returns a Future of the
+        mirror image.
+    */
+    private Future requestMirrorImage(final String name) {
+        synchronized (mirrorImages) {
+            Future future = (Future)mirrorImages.get(name);
+            if (future == null) {
+                final Future image = requestPackedImage(name);
+                future = loader.submit(name + MIRROR_SUFFIX,
+                    new Callable() {
+                        public Object call() {
+                            return createMirrorImage(
+                                (Image)AssetLoader.get(image));
+                        }
+                    });
+                mirrorImages.put(name, future);
+            }
+            return future;
+        }
+    }
+
+
     public Image getMirrorImage(Image image) {
+        TextureAtlas.Region region = atlas.getRegion(image);
+        if (region != null) {
+            // use the mirror image that was requested, if any
+            return (Image)AssetLoader.get(
+                requestMirrorImage(region.getName()));
+        }
+        return createMirrorImage(image);
+    }
+
+
+    private Image createMirrorImage(Image image) {
+        // keep mirrored atlas images in the atlas, too
+        TextureAtlas.Region region = atlas.getRegion(image);
+        if (region != null) {
+            String name = region.getName() + MIRROR_SUFFIX;
+            TextureAtlas.Region mirror = atlas.getRegion(name);
+            if (mirror == null) {
+                mirror = atlas.add(name,
+                    getScaledImage(image, -1, 1));
+            }
+            if (mirror != null) {
+                return mirror.getImage();
+            }
+        }
         return getScaledImage(image, -1, 1);
     }
 
@@ -80,10 +370,19 @@ public class ResourceManager {
             (y-1) * image.getHeight(null) / 2);
 
         // create a transparent (not translucent) image
-        Image newImage = gc.createCompatibleImage(
-            image.getWidth(null),
-            image.getHeight(null),
-            Transparency.BITMASK);
+        Image newImage;
+        if (gc == null) {
+            newImage = new BufferedImage(
+                image.getWidth(null),
+                image.getHeight(null),
+                BufferedImage.TYPE_INT_ARGB);
+        }
+        else {
+            newImage = gc.createCompatibleImage(
+                image.getWidth(null),
+                image.getHeight(null),
+                Transparency.BITMASK);
+        }
 
         // draw the transformed image
         Graphics2D g = (Graphics2D)newImage.getGraphics();
@@ -94,13 +393,86 @@ public class ResourceManager {
     }
 
 
+    /**
+        Sets whether maps are streamed. If windowChunks is more
+        than 0, maps loaded from now on only keep that many
+        columns of chunks in memory, and load the rest as the
+        player moves (see MapStream). If it's 0, maps are loaded
+        all at once.
+    */
+    public void setMapStreaming(int windowChunks) {
+        streamWindow = windowChunks;
+    }
+
+
+    /**
+        Gets the text file of the specified map number.
+    */
+    private static String getMapFile(int mapNumber) {
+        return "maps/map" + mapNumber + ".txt";
+    }
+
+
+    /**
+        Gets the number of the map loadNextMap() loads: the next
+        map, or map 1 after the last one.
+    */
+    public int getNextMapNumber() {
+        int mapNumber = currentMap + 1;
+        if (!new File(getMapFile(mapNumber)).exists()) {
+            mapNumber = 1;
+        }
+        return mapNumber;
+    }
+
+
+    /**
+        Starts loading the next map in the background. The
+        following call to loadNextMap() returns it, waiting only
+        if it hasn't finished loading yet. Call again after each
+        map change.
+    */
+    public void preloadNextMap() {
+        final int mapNumber = getNextMapNumber();
+        if (nextMap != null && nextMapNumber == mapNumber) {
+            // already loading
+            return;
+        }
+        nextMapNumber = mapNumber;
+        nextMap = loader.submit(getMapFile(mapNumber), new Callable() {
+            public Object call() {
+                try {
+                    return loadMap(getMapFile(mapNumber), mapNumber);
+                }
+                catch (IOException ex) {
+                    // loadNextMap() tries again and handles it
+                    return null;
+                }
+            }
+        });
+    }
+
+
+    /**
+        Loads the next map, or map 1 after the last one. If the
+        map was preloaded, the preloaded TileMap is returned.
+    */
     public TileMap loadNextMap() {
         TileMap map = null;
+        if (nextMap != null) {
+            if (nextMapNumber == getNextMapNumber()) {
+                map = (TileMap)AssetLoader.get(nextMap);
+            }
+            nextMap = null;
+            if (map != null) {
+                currentMap = nextMapNumber;
+                return map;
+            }
+        }
         while (map == null) {
             currentMap ++ ;
             try {
-                map = loadMap(
-                    "maps/map" + currentMap + ".txt");
+                map = loadMap(getMapFile(currentMap));
             }
             catch (IOException ex) {
                 if (currentMap == 1) {
@@ -118,8 +490,7 @@ public class ResourceManager {
 
     public TileMap reloadMap() {
         try {
-            return loadMap(
-                "maps/map" + currentMap + ".txt");
+            return loadMap(getMapFile(currentMap));
         }
         catch (IOException ex) {
             ex.printStackTrace();
@@ -128,9 +499,29 @@ public class ResourceManager {
     }
 
 
-    private TileMap loadMap(String filename)
+    /**
+        Loads a map from the specified text file, using the tiles
+        of the current map number.
+    */
+    public TileMap loadMap(String filename)
         throws IOException
     {
+        return loadMap(filename, currentMap);
+    }
+
+
+    /**
+        Loads a map from the specified text file, using the tiles
+        of the specified map number. Safe to call from any
+        thread.
+    */
+    public TileMap loadMap(String filename, int mapNumber)
+        throws IOException
+    {
+        if (streamWindow > 0) {
+            return openMap(filename, mapNumber);
+        }
+
         ArrayList lines = new ArrayList();
         int width = 0;
         int height = 0;
@@ -154,96 +545,106 @@ public class ResourceManager {
         }
 
         // parse the lines to create a TileEngine
+        waitForSprites();
         height = lines.size();
-        TileMap newMap = new TileMap(width, height);
+        TileMap newMap = new TileMap(width, height,
+            getPalette(mapNumber));
+        TilePalette palette = newMap.getPalette();
         for (int y=0; y<height; y++) {
             String line = (String)lines.get(y);
             for (int x=0; x<line.length(); x++) {
                 char ch = line.charAt(x);
-                // check if the char represents tile A, B, C etc.
-                int tile = ch - 'A';
-                if (tile >= 0 && tile < 24) {
-                    if(currentMap == 1)
-                    newMap.setTile(x, y, (Image)tiles.get(tile));
-                    else if(currentMap == 2)
-                        newMap.setTile(x, y, (Image)alTiles2.get(tile));
-                    else if(currentMap == 3)
-                        newMap.setTile(x, y, (Image)alTiles3.get(tile));
-                }
-                //Tile especial de agua
-                else if(ch == '9') {
-                    newMap.setTile(x, y, (Image)alSpecialTiles.get(0));
-                }
-                //Tile especial de agua
-                else if(ch == ';') {
-                    newMap.setTile(x, y, (Image)alSpecialTiles.get(1));
-                }
-                //Tile especial de agua
-                else if(ch == '=') {
-                    newMap.setTile(x, y, (Image)alSpecialTiles.get(2));
-                }
-                //Tile especial de agua
-                else if(ch == '@') {
-                    newMap.setTile(x, y, (Image)alSpecialTiles.get(3));
+                // check if the char represents a tile
+                short tile = palette.getId(ch);
+                if (tile != TilePalette.EMPTY) {
+                    newMap.setTileId(x, y, tile);
                 }
                 // check if the char represents a sprite
-                else if (ch == 'o') {
-                    addSprite(newMap, coinSprite, x, y);
-                }
-                else if (ch == '!') {
-                    addSprite(newMap, musicSprite, x, y);
-                }
-                else if (ch == '*') {
-                    addSprite(newMap, goalSprite, x, y);
-                }
-                else if (ch == '1') {
-                    addSprite(newMap, grubSprite, x, y);
-                }
-                else if (ch == '2') {
-                    addSprite(newMap, flySprite, x, y);
-                }
-                else if (ch == '3') {
-                    addSprite(newMap, Mugre3Sprite, x, y);
-                }
-                else if (ch == '4') {
-                    addSprite(newMap, Mugre4Sprite, x, y);
-                }
-                else if (ch == '5') {
-                    addSprite(newMap, Mugre5Sprite, x, y);
+                else {
+                    Sprite sprite = createSprite(ch, x, y);
+                    if (sprite != null) {
+                        newMap.addSprite(sprite);
+                    }
                 }
             }
         }
 
-        // add the player to the map
+        addPlayer(newMap);
+        return newMap;
+    }
+
+
+    /**
+        Opens a map as a MapStream, and loads the window of
+        chunks the player starts in.
+    */
+    private TileMap openMap(String filename, int mapNumber)
+        throws IOException
+    {
+        waitForSprites();
+        MapStream stream = new MapStream(this, filename,
+            getPalette(mapNumber), streamWindow);
+        TileMap newMap = stream.getMap();
+        // the player starts at the left of the map
+        stream.update(0, (streamWindow << TileMap.CHUNK_SIZE_BITS) - 1);
+        addPlayer(newMap);
+        return newMap;
+    }
+
+
+    private void addPlayer(TileMap map) {
         Sprite player = (Sprite)playerSprite.clone();
         player.setX(TileMapRenderer.tilesToPixels(3));
         player.setY(0);
-        newMap.setPlayer(player);
-
-        return newMap;
+        map.setPlayer(player);
     }
 
 
-    private void addSprite(TileMap map,
-        Sprite hostSprite, int tileX, int tileY)
-    {
-        if (hostSprite != null) {
-            // clone the sprite from the "host"
-            Sprite sprite = (Sprite)hostSprite.clone();
+    /**
+        Creates the Sprite for a character of a map file, placed
+        on the specified tile. Returns null if the character
+        isn't a Sprite. Safe to call from any thread once the
+        "host" Sprites are loaded.
+    */
+    Sprite createSprite(char ch, int tileX, int tileY) {
+        Sprite hostSprite = getHostSprite(ch);
+        if (hostSprite == null) {
+            return null;
+        }
+
+        // clone the sprite from the "host"
+        Sprite sprite = (Sprite)hostSprite.clone();
 
-            // center the sprite
-            sprite.setX(
-                TileMapRenderer.tilesToPixels(tileX) +
-                (TileMapRenderer.tilesToPixels(1) -
-                sprite.getWidth()) / 2);
+        // center the sprite
+        sprite.setX(
+            TileMapRenderer.tilesToPixels(tileX) +
+            (TileMapRenderer.tilesToPixels(1) -
+            sprite.getWidth()) / 2);
 
-            // bottom-justify the sprite
-            sprite.setY(
-                TileMapRenderer.tilesToPixels(tileY + 1) -
-                sprite.getHeight());
+        // bottom-justify the sprite
+        sprite.setY(
+            TileMapRenderer.tilesToPixels(tileY + 1) -
+            sprite.getHeight());
+
+        return sprite;
+    }
 
-            // add it to the map
-            map.addSprite(sprite);
+
+    /**
+        Gets the "host" Sprite of a map file character, or null
+        if the character isn't a Sprite.
+    */
+    private Sprite getHostSprite(char ch) {
+        switch (ch) {
+            case 'o': return coinSprite;
+            case '!': return musicSprite;
+            case '*': return goalSprite;
+            case '1': return grubSprite;
+            case '2': return flySprite;
+            case '3': return Mugre3Sprite;
+            case '4': return Mugre4Sprite;
+            case '5': return Mugre5Sprite;
+            default: return null;
         }
     }
 
@@ -253,151 +654,203 @@ public class ResourceManager {
     // -----------------------------------------------------------
 
 
+    /**
+        Loads the cached TextureAtlas, or creates an empty one if
+        there is no cached atlas or if any of its images changed
+        since it was saved.
+    */
+    private void loadAtlas() {
+        atlas = TextureAtlas.load(gc, ATLAS_DIR, ATLAS_NAME);
+        if (atlas != null) {
+            long atlasTime =
+                new File(ATLAS_DIR, ATLAS_NAME + ".txt").lastModified();
+            String[] names = atlas.getRegionNames();
+            for (int i=0; i<names.length; i++) {
+                String name = names[i];
+                if (name.endsWith(MIRROR_SUFFIX)) {
+                    name = name.substring(0,
+                        name.length() - MIRROR_SUFFIX.length());
+                }
+                File file = new File("images/" + name);
+                if (!file.exists() || file.lastModified() > atlasTime) {
+                    // out of date
+                    atlas = null;
+                    break;
+                }
+            }
+        }
+        if (atlas == null) {
+            atlas = new TextureAtlas(gc,
+                TextureAtlas.DEFAULT_PAGE_SIZE);
+        }
+    }
+
+
+    /**
+        Saves the TextureAtlas to the cache if images were
+        added to it.
+    */
+    private void saveAtlas() {
+        if (atlas.isModified()) {
+            try {
+                atlas.save(ATLAS_DIR, ATLAS_NAME);
+            }
+            catch (IOException ex) {
+                // not fatal - the atlas is rebuilt next time
+                ex.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+        Gets the TilePalette used by the specified map number.
+        Waits for the palette's tiles to finish loading.
+    */
+    public TilePalette getPalette(int mapNumber) {
+        if (mapNumber >= 1 && mapNumber <= palettes.length) {
+            return (TilePalette)AssetLoader.get(
+                palettes[mapNumber - 1]);
+        }
+        return (TilePalette)AssetLoader.get(specialPalette);
+    }
+
+
     public void loadTileImages() {
+        // start loading the special tiles
+        final Future[] specialTiles = new Future[SPECIAL_TILES.length];
+        for (int i=0; i<SPECIAL_TILES.length; i++) {
+            specialTiles[i] = requestPackedImage(
+                "Tilesets/" + SPECIAL_TILES[i] + ".png");
+        }
+
         // keep looking for tile A,B,C, etc. this makes it
         // easy to drop new tiles in the images/ directory
-        tiles = new ArrayList();
-        alTiles2 = new ArrayList();
-        alTiles3 = new ArrayList();
-        alSpecialTiles = new ArrayList();
+        final ArrayList[] tiles = new ArrayList[TILE_SETS.length];
+        for (int i=0; i<TILE_SETS.length; i++) {
+            tiles[i] = new ArrayList();
+        }
         char ch = 'A';
-        alSpecialTiles.add(loadImage("Tilesets/9.png"));
-        alSpecialTiles.add(loadImage("Tilesets/;.png"));
-        alSpecialTiles.add(loadImage("Tilesets/=.png"));
-        alSpecialTiles.add(loadImage("Tilesets/@.png"));
-        while (true) {
-            String name = "Tilesets/" + ch + "_" + 1 + ".png";
-            File file = new File("images/" + name);
-            if (!file.exists()) {
-                break;
-            }
-            tiles.add(loadImage(name));
-            name = "Tilesets/" + ch + "_" + 3 + ".png";
-            file = new File("images/" + name);
-            if (!file.exists()) {
-                break;
-            }
-            alTiles2.add(loadImage(name));
-            name = "Tilesets/" + ch + "_" + 5 + ".png";
-            file = new File("images/" + name);
-            if (!file.exists()) {
-                break;
+        boolean done = false;
+        while (!done) {
+            for (int i=0; i<TILE_SETS.length; i++) {
+                String name = "Tilesets/" + ch + "_" + TILE_SETS[i] +
+                    ".png";
+                File file = new File("images/" + name);
+                if (!file.exists()) {
+                    done = true;
+                    break;
+                }
+                // start loading the tile
+                tiles[i].add(requestPackedImage(name));
             }
-            alTiles3.add(loadImage(name));
             ch++;
         }
-    }
 
+        // create each palette once its tiles are loaded. every
+        // palette also has the special tiles
+        palettes = new Future[TILE_SETS.length];
+        for (int i=0; i<TILE_SETS.length; i++) {
+            final ArrayList tileSet = tiles[i];
+            palettes[i] = loader.submit("palette " + TILE_SETS[i],
+                new Callable() {
+                    public Object call() {
+                        TilePalette palette = new TilePalette();
+                        for (int j=0; j<tileSet.size(); j++) {
+                            palette.add((char)('A' + j),
+                                (Image)AssetLoader.get(
+                                (Future)tileSet.get(j)), true);
+                        }
+                        addSpecialTiles(palette, specialTiles);
+                        return palette;
+                    }
+                });
+        }
+        specialPalette = loader.submit("special palette",
+            new Callable() {
+                public Object call() {
+                    TilePalette palette = new TilePalette();
+                    addSpecialTiles(palette, specialTiles);
+                    return palette;
+                }
+            });
+    }
 
-    public void loadCreatureSprites() {
 
-        Image[][] images = new Image[10][];
-        // load left-facing images
-        images[0] = new Image[] {
-            loadImage("Pomf/PomfW1.png"),
-            loadImage("Pomf/PomfW2.png"),
-            loadImage("Pomf/PomfW3.png"),
-            loadImage("Enemigo2/Enemigo2W1.png"),
-            loadImage("Enemigo2/Enemigo2W2.png"),
-            loadImage("Enemigo2/Enemigo2W3.png"),
-            loadImage("Enemigo1/Enemigo1W1.png"),
-            loadImage("Enemigo1/Enemigo1W2.png"),
-            loadImage("Enemigo1/Enemigo1W3.png"),
-            loadImage("Enemigo3/Enemigo3W1.png"),
-            loadImage("Enemigo3/Enemigo3W2.png"),
-            loadImage("Enemigo3/Enemigo3W3.png"),
-            loadImage("Enemigo4/Enemigo4W1.png"),
-            loadImage("Enemigo4/Enemigo4W2.png"),
-            loadImage("Enemigo4/Enemigo4W3.png"),
-            loadImage("Enemigo6/Enemigo6W1.png"),
-            loadImage("Enemigo6/Enemigo6W2.png"),
-            loadImage("Enemigo6/Enemigo6W3.png"),
-            
-        };
-
-        images[1] = new Image[images[0].length];
-        for (int i=0; i<images[0].length; i++) {
-            // right-facing images
-            images[1][i] = getMirrorImage(images[0][i]);
+    private void addSpecialTiles(TilePalette palette,
+        Future[] specialTiles)
+    {
+        for (int i=0; i<SPECIAL_TILES.length; i++) {
+            palette.add(SPECIAL_TILES[i],
+                (Image)AssetLoader.get(specialTiles[i]), true);
         }
-        
-        
-        // load left-facing "dead" images
-        images[2]= new Image[] {
-            loadImage("Pomf/PomfD1.png"),
-            loadImage("Pomf/PomfD2.png"),
-            loadImage("Pomf/PomfD3.png"),
-            loadImage("Pomf/PomfD4.png"),
-            loadImage("Pomf/PomfD5.png"),
-            loadImage("Pomf/PomfD6.png"),
-            loadImage("Pomf/PomfD7.png"),
-            loadImage("Pomf/PomfD8.png"),
-            loadImage("Pomf/PomfD3.png"),
-            loadImage("Enemigo2/Enemigo2D1.png"),
-            loadImage("Enemigo2/Enemigo2D2.png"),
-            loadImage("Enemigo2/Enemigo2D3.png"),
-            loadImage("Enemigo2/Enemigo2D4.png"),
-            loadImage("Enemigo2/Enemigo2D5.png"),
-            loadImage("Enemigo2/Enemigo2D6.png"),
-            loadImage("Enemigo2/Enemigo2D7.png"),
-            loadImage("Enemigo2/Enemigo2D8.png"),
-            loadImage("Enemigo2/Enemigo2D9.png"),
-            loadImage("Enemigo1/Enemigo1D1.png"),
-            loadImage("Enemigo1/Enemigo1D2.png"),
-            loadImage("Enemigo1/Enemigo1D3.png"),
-            loadImage("Enemigo1/Enemigo1D4.png"),
-            loadImage("Enemigo1/Enemigo1D5.png"),
-            loadImage("Enemigo1/Enemigo1D6.png"),
-            loadImage("Enemigo1/Enemigo1D7.png"),
-            loadImage("Enemigo1/Enemigo1D8.png"),
-            loadImage("Enemigo1/Enemigo1D9.png"),
-            loadImage("Enemigo3/Enemigo3D1.png"),
-            loadImage("Enemigo3/Enemigo3D2.png"),
-            loadImage("Enemigo3/Enemigo3D3.png"),
-            loadImage("Enemigo3/Enemigo3D4.png"),
-            loadImage("Enemigo3/Enemigo3D5.png"),
-            loadImage("Enemigo3/Enemigo3D6.png"),
-            loadImage("Enemigo3/Enemigo3D7.png"),
-            loadImage("Enemigo3/Enemigo3D8.png"),
-            loadImage("Enemigo3/Enemigo3D9.png"),
-            loadImage("Enemigo4/Enemigo4D1.png"),
-            loadImage("Enemigo4/Enemigo4D2.png"),
-            loadImage("Enemigo4/Enemigo4D3.png"),
-            loadImage("Enemigo4/Enemigo4D4.png"),
-            loadImage("Enemigo4/Enemigo4D5.png"),
-            loadImage("Enemigo4/Enemigo4D6.png"),
-            loadImage("Enemigo4/Enemigo4D7.png"),
-            loadImage("Enemigo4/Enemigo4D8.png"),
-            loadImage("Enemigo4/Enemigo4D9.png"),
-            loadImage("Enemigo6/Enemigo6D1.png"),
-            loadImage("Enemigo6/Enemigo6D2.png"),
-            loadImage("Enemigo6/Enemigo6D3.png"),
-            loadImage("Enemigo6/Enemigo6D4.png"),
-            loadImage("Enemigo6/Enemigo6D5.png"),
-            loadImage("Enemigo6/Enemigo6D6.png"),
-            loadImage("Enemigo6/Enemigo6D7.png"),
-            loadImage("Enemigo6/Enemigo6D8.png"),
-            loadImage("Enemigo6/Enemigo6D9.png"),
-        };
-        images[3] = new Image[images[2].length];
-        for(int i=0; i<images[2].length; i++) {
-            // right-facing "dead" images
-            images[3][i] = getMirrorImage(images[2][i]);
+    }
+
+
+    /**
+        Starts loading a set of images and their mirror images.
+        Returns a Future of an array of two Image arrays: the
+        images, and the mirrored images.
+    */
+    private Future requestImageSet(final String[] names) {
+        final Future[] images = new Future[names.length];
+        final Future[] mirrorImages = new Future[names.length];
+        for (int i=0; i<names.length; i++) {
+            images[i] = requestPackedImage(names[i]);
         }
-        
-        
-        // load jumping images for Pomf
-        images[4] = new Image[]{
-            loadImage("Pomf/PomfJ1.png"),
-            loadImage("Pomf/PomfJ2.png"),
-            loadImage("Pomf/PomfJ3.png"),
-            loadImage("Pomf/PomfJ4.png"),
-        };
-        images[5] = new Image[images[4].length];
-        for(int i=0; i<images[4].length; i++) {
-            // right-facing jump images
-            images[5][i] = getMirrorImage(images[4][i]);
+        for (int i=0; i<names.length; i++) {
+            mirrorImages[i] = requestMirrorImage(names[i]);
         }
+        return loader.submit("image set " + names[0],
+            new Callable() {
+                public Object call() {
+                    Image[][] set = new Image[2][names.length];
+                    for (int i=0; i<names.length; i++) {
+                        set[0][i] = (Image)AssetLoader.get(images[i]);
+                        set[1][i] =
+                            (Image)AssetLoader.get(mirrorImages[i]);
+                    }
+                    return set;
+                }
+            });
+    }
+
+
+    public void loadCreatureSprites() {
+        // start loading and mirroring every frame in parallel
+        final Future walkingImages = requestImageSet(WALKING_IMAGES);
+        final Future deadImages = requestImageSet(DEAD_IMAGES);
+        final Future jumpingImages = requestImageSet(JUMPING_IMAGES);
+
+        creatureSprites = loader.submit("creature sprites",
+            new Callable() {
+                public Object call() {
+                    createCreatureSprites(
+                        (Image[][])AssetLoader.get(walkingImages),
+                        (Image[][])AssetLoader.get(deadImages),
+                        (Image[][])AssetLoader.get(jumpingImages));
+                    return null;
+                }
+            });
+    }
+
+
+    private void createCreatureSprites(Image[][] walkingImages,
+        Image[][] deadImages, Image[][] jumpingImages)
+    {
+
+        Image[][] images = new Image[10][];
+        // left-facing and right-facing images
+        images[0] = walkingImages[0];
+        images[1] = walkingImages[1];
+
+        // left-facing and right-facing "dead" images
+        images[2] = deadImages[0];
+        images[3] = deadImages[1];
+
+        // jumping images for Pomf
+        images[4] = jumpingImages[0];
+        images[5] = jumpingImages[1];
         //load hurt 
         
         //Estos espacios los dejo para las demas animaciones
@@ -469,23 +922,40 @@ public class ResourceManager {
         Mugre5Anim[3]);
     }
 
+    /**
+        Adds a frame to an Animation, drawn straight from the
+        atlas page if the image is from the TextureAtlas.
+    */
+    private void addFrame(Animation anim, Image image,
+        long duration)
+    {
+        TextureAtlas.Region region = atlas.getRegion(image);
+        if (region != null) {
+            anim.addFrame(region, duration);
+        }
+        else {
+            anim.addFrame(image, duration);
+        }
+    }
+
+
     private Animation createWalkingAnim(Image img1, Image img2,//Se cargan las animaciones de las mugres (enemigos)
         Image img3)
     {
         Animation anim = new Animation();
-        anim.addFrame(img1, 100);
-        anim.addFrame(img2, 100);
-        anim.addFrame(img3, 100);
+        addFrame(anim, img1, 100);
+        addFrame(anim, img2, 100);
+        addFrame(anim, img3, 100);
         return anim;
     }
     
     private Animation createJumpingAnim(Image img1, Image img2, Image img3, 
             Image img4){
         Animation anim = new Animation();
-        anim.addFrame(img1, 100);
-        anim.addFrame(img2, 100);
-        anim.addFrame(img3, 100);
-        anim.addFrame(img4, 100);
+        addFrame(anim, img1, 100);
+        addFrame(anim, img2, 100);
+        addFrame(anim, img3, 100);
+        addFrame(anim, img4, 100);
         return anim;
     }
     
@@ -493,37 +963,53 @@ public class ResourceManager {
             Image img3,Image img4, Image img5, Image img6, 
             Image img7,Image img8, Image img9) {
         Animation anim = new Animation();
-        anim.addFrame(img1, 70);
-        anim.addFrame(img2, 70);
-        anim.addFrame(img3, 70);
-        anim.addFrame(img4, 70);
-        anim.addFrame(img5, 70);
-        anim.addFrame(img6, 70);
-        anim.addFrame(img7, 70);
-        anim.addFrame(img8, 70);
-        anim.addFrame(img9, 70);
+        addFrame(anim, img1, 70);
+        addFrame(anim, img2, 70);
+        addFrame(anim, img3, 70);
+        addFrame(anim, img4, 70);
+        addFrame(anim, img5, 70);
+        addFrame(anim, img6, 70);
+        addFrame(anim, img7, 70);
+        addFrame(anim, img8, 70);
+        addFrame(anim, img9, 70);
         
         return anim;
     }
 
 
-    private void loadPowerUpSprites() {//Se cargan las animaciones de los objetos a agarrar
+    private void loadPowerUpSprites() {
+        // start loading the images
+        requestPackedImage("/Mascaras/Mask1P.png");
+        requestPackedImage("/Mascaras/Mask2P.png");
+        requestPackedImage("/Mascaras/Mask3P.png");
+
+        powerUpSprites = loader.submit("power up sprites",
+            new Callable() {
+                public Object call() {
+                    createPowerUpSprites();
+                    return null;
+                }
+            });
+    }
+
+
+    private void createPowerUpSprites() {//Se cargan las animaciones de los objetos a agarrar
         // create "goal" sprite
         Animation anim = new Animation();
-        anim.addFrame(loadImage("/Mascaras/Mask1P.png"), 150);
-        anim.addFrame(loadImage("/Mascaras/Mask1P.png"), 150);
+        addFrame(anim, loadPackedImage("/Mascaras/Mask1P.png"), 150);
+        addFrame(anim, loadPackedImage("/Mascaras/Mask1P.png"), 150);
         goalSprite = new PowerUp.Goal(anim);
 
         // create "star" sprite
         anim = new Animation();
-        anim.addFrame(loadImage("/Mascaras/Mask2P.png"), 100);
-        anim.addFrame(loadImage("/Mascaras/Mask2P.png"), 100);
+        addFrame(anim, loadPackedImage("/Mascaras/Mask2P.png"), 100);
+        addFrame(anim, loadPackedImage("/Mascaras/Mask2P.png"), 100);
         coinSprite = new PowerUp.Gota(anim);
 
         // create "music" sprite
         anim = new Animation();
-        anim.addFrame(loadImage("/Mascaras/Mask3P.png"), 150);
-        anim.addFrame(loadImage("/Mascaras/Mask3P.png"), 150);
+        addFrame(anim, loadPackedImage("/Mascaras/Mask3P.png"), 150);
+        addFrame(anim, loadPackedImage("/Mascaras/Mask3P.png"), 150);
         musicSprite = new PowerUp.Music(anim);
     }
 
@@ -0,0 +1,222 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The SpriteGrid class is a uniform grid of square cells that
+    keeps track of which Sprites overlap each cell. Finding the
+    Sprites near an area only looks at the cells the area
+    overlaps, instead of every Sprite in the map.
+    <p>Sprites outside the grid (for example, above the top of
+    the map) are kept in the nearest edge cells.
+    <p>A Sprite's cells are only updated when add() or update()
+    is called, so update() should be called whenever a Sprite
+    moves.
+    <p>The grid doesn't have to start at the left of the map;
+    see setOriginX().
+*/
+public class SpriteGrid {
+
+    /**
+        The size in bits of a cell.
+        Math.pow(2, CELL_SIZE_BITS) == cell size in pixels
+    */
+    public static final int CELL_SIZE_BITS = 6;
+
+    private int cellsWide;
+    private int cellsHigh;
+    private ArrayList[] cells;
+    // the x position, in pixels, of the left edge of the grid
+    private int originX;
+    // the cell bounds {left, top, right, bottom} of each Sprite,
+    // followed by the order it was added in
+    private IdentityHashMap spriteCells;
+    private int nextOrder;
+    // the Sprites found so far by a getSprites() query, reused
+    // between queries
+    private IdentityHashMap found;
+
+    /**
+        Creates a new SpriteGrid covering the specified area,
+        in pixels.
+    */
+    public SpriteGrid(int width, int height) {
+        cellsWide = Math.max(1, (width >> CELL_SIZE_BITS) + 1);
+        cellsHigh = Math.max(1, (height >> CELL_SIZE_BITS) + 1);
+        cells = new ArrayList[cellsWide * cellsHigh];
+        spriteCells = new IdentityHashMap();
+        found = new IdentityHashMap();
+    }
+
+
+    /**
+        Moves the left edge of the grid to the specified x
+        position, in pixels, and puts every Sprite back in the
+        cells it now overlaps. For maps that only keep part of
+        their width in memory.
+    */
+    public void setOriginX(int originX) {
+        if (originX == this.originX) {
+            return;
+        }
+        this.originX = originX;
+        for (int i=0; i<cells.length; i++) {
+            if (cells[i] != null) {
+                cells[i].clear();
+            }
+        }
+        Iterator i = spriteCells.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry entry = (Map.Entry)i.next();
+            Sprite sprite = (Sprite)entry.getKey();
+            int[] bounds = (int[])entry.getValue();
+            getCellBounds(sprite, bounds);
+            addToCells(sprite, bounds);
+        }
+    }
+
+
+    /**
+        Adds a Sprite to the cells it overlaps.
+    */
+    public void add(Sprite sprite) {
+        int[] bounds = new int[5];
+        getCellBounds(sprite, bounds);
+        bounds[4] = nextOrder++;
+        spriteCells.put(sprite, bounds);
+        addToCells(sprite, bounds);
+    }
+
+
+    /**
+        Removes a Sprite from this SpriteGrid.
+    */
+    public void remove(Sprite sprite) {
+        int[] bounds = (int[])spriteCells.remove(sprite);
+        if (bounds != null) {
+            removeFromCells(sprite, bounds);
+        }
+    }
+
+
+    /**
+        Gets the order a Sprite was added to this SpriteGrid in:
+        a Sprite added later has a higher number. Returns -1 if
+        the Sprite isn't in this SpriteGrid.
+    */
+    public int getOrder(Sprite sprite) {
+        int[] bounds = (int[])spriteCells.get(sprite);
+        return (bounds == null) ? -1 : bounds[4];
+    }
+
+
+    /**
+        Moves a Sprite to the cells it overlaps at its current
+        position. Does nothing if the Sprite is still in the same
+        cells, or if the Sprite isn't in this SpriteGrid.
+    */
+    public void update(Sprite sprite) {
+        int[] bounds = (int[])spriteCells.get(sprite);
+        if (bounds == null) {
+            return;
+        }
+        int left = bounds[0];
+        int top = bounds[1];
+        int right = bounds[2];
+        int bottom = bounds[3];
+        getCellBounds(sprite, bounds);
+        if (left != bounds[0] || top != bounds[1] ||
+            right != bounds[2] || bottom != bounds[3])
+        {
+            int[] oldBounds = new int[] {left, top, right, bottom};
+            removeFromCells(sprite, oldBounds);
+            addToCells(sprite, bounds);
+        }
+    }
+
+
+    /**
+        Adds every Sprite that may overlap the specified area
+        (in pixels) to the result list. Each Sprite is added
+        once. The Sprites returned are only candidates; their
+        bounds still need to be checked. Not thread-safe.
+    */
+    public void getSprites(int x, int y, int width, int height,
+        List result)
+    {
+        int left = toCell(x - originX, cellsWide);
+        int top = toCell(y, cellsHigh);
+        int right = toCell(x - originX + width - 1, cellsWide);
+        int bottom = toCell(y + height - 1, cellsHigh);
+        boolean oneCell = (left == right && top == bottom);
+        for (int cellY=top; cellY<=bottom; cellY++) {
+            for (int cellX=left; cellX<=right; cellX++) {
+                ArrayList cell = cells[cellY * cellsWide + cellX];
+                if (cell == null) {
+                    continue;
+                }
+                for (int i=0; i<cell.size(); i++) {
+                    Object sprite = cell.get(i);
+                    // a Sprite can be in several of the cells
+                    if (oneCell || found.put(sprite, sprite) == null) {
+                        result.add(sprite);
+                    }
+                }
+            }
+        }
+        if (!oneCell) {
+            found.clear();
+        }
+    }
+
+
+    private void getCellBounds(Sprite sprite, int[] bounds) {
+        int x = Math.round(sprite.getX()) - originX;
+        int y = Math.round(sprite.getY());
+        bounds[0] = toCell(x, cellsWide);
+        bounds[1] = toCell(y, cellsHigh);
+        bounds[2] = toCell(x + sprite.getWidth() - 1, cellsWide);
+        bounds[3] = toCell(y + sprite.getHeight() - 1, cellsHigh);
+    }
+
+
+    private int toCell(int pixels, int numCells) {
+        int cell = pixels >> CELL_SIZE_BITS;
+        return Math.max(0, Math.min(cell, numCells - 1));
+    }
+
+
+    private void addToCells(Sprite sprite, int[] bounds) {
+        for (int cellY=bounds[1]; cellY<=bounds[3]; cellY++) {
+            for (int cellX=bounds[0]; cellX<=bounds[2]; cellX++) {
+                int index = cellY * cellsWide + cellX;
+                if (cells[index] == null) {
+                    cells[index] = new ArrayList(4);
+                }
+                cells[index].add(sprite);
+            }
+        }
+    }
+
+
+    private void removeFromCells(Sprite sprite, int[] bounds) {
+        for (int cellY=bounds[1]; cellY<=bounds[3]; cellY++) {
+            for (int cellX=bounds[0]; cellX<=bounds[2]; cellX++) {
+                ArrayList cell = cells[cellY * cellsWide + cellX];
+                // remove by identity
+                for (int i=0; i<cell.size(); i++) {
+                    if (cell.get(i) == sprite) {
+                        cell.remove(i);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -3,28 +3,114 @@ package com.brackeen.javagamebook.tilegame;
 import java.awt.Image;
 import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.List;
 
+import com.brackeen.javagamebook.graphics.PhysicsStore;
 import com.brackeen.javagamebook.graphics.Sprite;
 
 /**
     The TileMap class contains the data for a tile-based
-    map, including Sprites. Each tile is a reference to an
-    Image. Of course, Images are used multiple times in the tile
-    map.
+    map, including Sprites. Each tile is a short id, stored in
+    one flat array in row order. The map's TilePalette maps ids
+    to Images and tile properties.
+    <p>Sprites are also kept in a SpriteGrid, so the Sprites near
+    a location can be found quickly. Call updateSprite() after
+    moving a Sprite. The position and velocity of the Sprites
+    live in the map's PhysicsStore while they are in the map.
+    <p>The map is also divided into square chunks of tiles. Each
+    chunk has a version number that changes whenever one of its
+    tiles changes, so cached drawings of a chunk know when they
+    are out of date.
+    <p>A TileMap can also keep only a window of a few chunks
+    across in memory, for maps that are loaded a column of chunks
+    at a time by a MapStream. Each column of chunks has a place
+    in the window, shared with every column a window's width
+    away; setChunk() puts a column in its place, and the tiles
+    of columns that aren't in the window are empty.
 */
 public class TileMap {
 
-    private Image[][] tiles;
+    /**
+        The size of a chunk, in tiles.
+        Math.pow(2, CHUNK_SIZE_BITS) == CHUNK_SIZE
+    */
+    public static final int CHUNK_SIZE_BITS = 4;
+    public static final int CHUNK_SIZE = 1 << CHUNK_SIZE_BITS;
+
+    private short[] tiles;
+    private int width;
+    private int height;
+    private TilePalette palette;
     private LinkedList sprites;
+    private SpriteGrid spriteGrid;
+    private PhysicsStore physics;
     private Sprite player;
+    private int chunksWide;
+    private int chunksHigh;
+    private int[] chunkVersions;
+    // the width of the tiles array, and of chunkVersions in chunks
+    private int tilesWide;
+    private int versionsWide;
+    // for windowed maps, the chunk column in each window place
+    private int windowChunks;
+    private int[] residentChunks;
+    private MapStream stream;
 
     /**
         Creates a new TileMap with the specified width and
-        height (in number of tiles) of the map.
+        height (in number of tiles) of the map, and a new, empty
+        TilePalette.
     */
     public TileMap(int width, int height) {
-        tiles = new Image[width][height];
+        this(width, height, new TilePalette());
+    }
+
+
+    /**
+        Creates a new TileMap with the specified width and
+        height (in number of tiles) of the map, using the
+        specified TilePalette.
+    */
+    public TileMap(int width, int height, TilePalette palette) {
+        this(width, height, palette, 0);
+    }
+
+
+    /**
+        Creates a new TileMap with the specified width and
+        height (in number of tiles) of the map, that only keeps
+        the specified number of chunks across in memory. The map
+        starts with no chunks in the window. If windowChunks is
+        0, the whole map is kept in memory.
+    */
+    public TileMap(int width, int height, TilePalette palette,
+        int windowChunks)
+    {
+        this.width = width;
+        this.height = height;
+        this.palette = palette;
+        this.windowChunks = windowChunks;
+        chunksWide = (width + CHUNK_SIZE - 1) >> CHUNK_SIZE_BITS;
+        chunksHigh = (height + CHUNK_SIZE - 1) >> CHUNK_SIZE_BITS;
+        if (windowChunks > 0) {
+            tilesWide = windowChunks << CHUNK_SIZE_BITS;
+            versionsWide = windowChunks;
+            residentChunks = new int[windowChunks];
+            for (int i=0; i<windowChunks; i++) {
+                residentChunks[i] = -1;
+            }
+        }
+        else {
+            tilesWide = width;
+            versionsWide = chunksWide;
+        }
+        tiles = new short[tilesWide * height];
         sprites = new LinkedList();
+        spriteGrid = new SpriteGrid(
+            TileMapRenderer.tilesToPixels(tilesWide),
+            TileMapRenderer.tilesToPixels(height));
+        physics = new PhysicsStore();
+        chunkVersions = new int[versionsWide * chunksHigh];
     }
 
 
@@ -32,7 +118,7 @@ public class TileMap {
         Gets the width of this TileMap (number of tiles across).
     */
     public int getWidth() {
-        return tiles.length;
+        return width;
     }
 
 
@@ -40,7 +126,66 @@ public class TileMap {
         Gets the height of this TileMap (number of tiles down).
     */
     public int getHeight() {
-        return tiles[0].length;
+        return height;
+    }
+
+
+    /**
+        Gets the TilePalette of this TileMap.
+    */
+    public TilePalette getPalette() {
+        return palette;
+    }
+
+
+    /**
+        Gets the id of the tile at the specified location.
+        Returns TilePalette.EMPTY if no tile is at the location
+        or if the location is out of bounds.
+    */
+    public short getTileId(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return TilePalette.EMPTY;
+        }
+        if (residentChunks != null) {
+            int chunkX = x >> CHUNK_SIZE_BITS;
+            if (residentChunks[chunkX % windowChunks] != chunkX) {
+                return TilePalette.EMPTY;
+            }
+            x %= tilesWide;
+        }
+        return tiles[y * tilesWide + x];
+    }
+
+
+    /**
+        Sets the id of the tile at the specified location. In a
+        windowed map, the location must be in a chunk in the
+        window.
+    */
+    public void setTileId(int x, int y, short id) {
+        x %= tilesWide;
+        tiles[y * tilesWide + x] = id;
+        chunkVersions[(y >> CHUNK_SIZE_BITS) * versionsWide +
+            (x >> CHUNK_SIZE_BITS)]++;
+    }
+
+
+    /**
+        Checks if the tile at the specified location is solid.
+        Returns false if the location is out of bounds. In a
+        windowed map, the tiles of chunks that aren't in the
+        window are solid, so Creatures don't walk or fall into
+        them.
+    */
+    public boolean isSolid(int x, int y) {
+        if (residentChunks != null && x >= 0 && x < width &&
+            y >= 0 && y < height &&
+            !isChunkResident(x >> CHUNK_SIZE_BITS))
+        {
+            return true;
+        }
+        return palette.isSolid(getTileId(x, y));
     }
 
 
@@ -50,22 +195,129 @@ public class TileMap {
         bounds.
     */
     public Image getTile(int x, int y) {
-        if (x < 0 || x >= getWidth() ||
-            y < 0 || y >= getHeight())
-        {
-            return null;
+        return palette.getImage(getTileId(x, y));
+    }
+
+
+    /**
+        Sets the tile at the specified location. Images that
+        aren't in this map's palette are added as solid tiles.
+    */
+    public void setTile(int x, int y, Image tile) {
+        setTileId(x, y, palette.getId(tile));
+    }
+
+
+    /**
+        Gets the width of this TileMap in chunks.
+    */
+    public int getChunksWide() {
+        return chunksWide;
+    }
+
+
+    /**
+        Gets the height of this TileMap in chunks.
+    */
+    public int getChunksHigh() {
+        return chunksHigh;
+    }
+
+
+    /**
+        Gets the version of the specified chunk. The version
+        changes every time a tile in the chunk is set.
+    */
+    public int getChunkVersion(int chunkX, int chunkY) {
+        return chunkVersions[chunkY * versionsWide +
+            chunkX % versionsWide];
+    }
+
+
+    /**
+        Gets the number of chunks across this map keeps in
+        memory: the width of the window, or the width of the map
+        if it isn't windowed.
+    */
+    public int getResidentChunksWide() {
+        return versionsWide;
+    }
+
+
+    /**
+        Checks if the specified column of chunks is in memory.
+    */
+    public boolean isChunkResident(int chunkX) {
+        if (chunkX < 0 || chunkX >= chunksWide) {
+            return false;
         }
-        else {
-            return tiles[x][y];
+        return residentChunks == null ||
+            residentChunks[chunkX % windowChunks] == chunkX;
+    }
+
+
+    /**
+        Puts a column of chunks in a windowed map, replacing the
+        column that was in its place in the window. The tiles are
+        CHUNK_SIZE across, in row order, for the full height of
+        the map.
+    */
+    public void setChunk(int chunkX, short[] chunkTiles) {
+        int slot = chunkX % versionsWide;
+        if (residentChunks != null) {
+            residentChunks[slot] = chunkX;
+        }
+        int firstX = slot << CHUNK_SIZE_BITS;
+        int count = Math.min(CHUNK_SIZE, tilesWide - firstX);
+        for (int y=0; y<height; y++) {
+            System.arraycopy(chunkTiles, y * CHUNK_SIZE,
+                tiles, y * tilesWide + firstX, count);
+        }
+        for (int y=0; y<chunksHigh; y++) {
+            chunkVersions[y * versionsWide + slot]++;
         }
     }
 
 
     /**
-        Sets the tile at the specified location.
+        Takes a column of chunks out of a windowed map. Its tiles
+        are empty until it's set again. The Sprites on it are not
+        removed.
     */
-    public void setTile(int x, int y, Image tile) {
-        tiles[x][y] = tile;
+    public void removeChunk(int chunkX) {
+        if (!isChunkResident(chunkX) || residentChunks == null) {
+            return;
+        }
+        int slot = chunkX % windowChunks;
+        residentChunks[slot] = -1;
+        for (int y=0; y<chunksHigh; y++) {
+            chunkVersions[y * versionsWide + slot]++;
+        }
+    }
+
+
+    /**
+        Tells a windowed map which column of chunks is at the
+        left of its window, so the Sprites near a location can
+        still be found quickly.
+    */
+    public void setWindowStart(int chunkX) {
+        spriteGrid.setOriginX(TileMapRenderer.tilesToPixels(
+            chunkX << CHUNK_SIZE_BITS));
+    }
+
+
+    /**
+        Gets the MapStream that loads this map, or null if the
+        whole map is loaded.
+    */
+    public MapStream getStream() {
+        return stream;
+    }
+
+
+    void setStream(MapStream stream) {
+        this.stream = stream;
     }
 
 
@@ -90,6 +342,8 @@ public class TileMap {
     */
     public void addSprite(Sprite sprite) {
         sprites.add(sprite);
+        physics.add(sprite);
+        spriteGrid.add(sprite);
     }
 
 
@@ -97,16 +351,80 @@ public class TileMap {
         Removes a Sprite object from this map.
     */
     public void removeSprite(Sprite sprite) {
-        sprites.remove(sprite);
+        if (sprites.remove(sprite)) {
+            physics.remove(sprite);
+            spriteGrid.remove(sprite);
+        }
+    }
+
+
+    /**
+        Updates where this map keeps track of a Sprite after the
+        Sprite has moved.
+    */
+    public void updateSprite(Sprite sprite) {
+        spriteGrid.update(sprite);
+    }
+
+
+    /**
+        Gets the PhysicsStore that holds the position and
+        velocity of the Sprites in this map (excluding the
+        player).
+    */
+    public PhysicsStore getPhysics() {
+        return physics;
     }
 
 
     /**
         Gets an Iterator of all the Sprites in this map,
-        excluding the player Sprite.
+        excluding the player Sprite. Sprites can be removed with
+        the Iterator's remove() method.
     */
     public Iterator getSprites() {
-        return sprites.iterator();
+        final Iterator i = sprites.iterator();
+        return new Iterator() {
+            private Sprite current;
+
+            public boolean hasNext() {
+                return i.hasNext();
+            }
+
+            public Object next() {
+                current = (Sprite)i.next();
+                return current;
+            }
+
+            public void remove() {
+                i.remove();
+                physics.remove(current);
+                spriteGrid.remove(current);
+            }
+        };
+    }
+
+
+    /**
+        Gets the place of a Sprite in this map's list of Sprites
+        as a number that only increases along the list, so it
+        can be used to put Sprites in the order of getSprites().
+        Returns -1 if the Sprite isn't in this map.
+    */
+    public int getSpriteOrder(Sprite sprite) {
+        return spriteGrid.getOrder(sprite);
+    }
+
+
+    /**
+        Adds the Sprites (excluding the player) that may overlap
+        the specified area, in pixels, to the result list. The
+        Sprites' bounds still need to be checked.
+    */
+    public void getSprites(int x, int y, int width, int height,
+        List result)
+    {
+        spriteGrid.getSprites(x, y, width, height, result);
     }
 
 }
@@ -19,7 +19,15 @@ import com.brackeen.javagamebook.graphics.ScreenManager;
     <p>Also, three static methods are provided to convert pixels
     to tile positions, and vice-versa.
 
-    <p>This TileMapRender uses a tile size of 64.
+    <p>Tiles are not drawn one at a time. Each chunk of the map
+    (see TileMap.CHUNK_SIZE) is drawn once into an image that is
+    compatible with the screen, and only the chunks that overlap
+    the screen are drawn each frame. A chunk is drawn again
+    only when one of its tiles changes. For a map that only keeps
+    a window of chunks in memory, the cache is the size of the
+    window, and chunks outside the window aren't drawn.
+
+    <p>This TileMapRender uses a tile size of 32.
 */
 public class TileMapRenderer {
 
@@ -33,6 +41,11 @@ public class TileMapRenderer {
     private Image backgroundC;
     private ScreenManager sc;
 
+    // cached chunk images of the last map drawn
+    private TileMap cachedMap;
+    private Image[] chunkImages;
+    private int[] chunkImageVersions;
+
     /**
         Converts a pixel position to a tile position.
     */
@@ -87,16 +100,27 @@ public class TileMapRenderer {
     */
     public void draw(Graphics2D g, TileMap map,
         int screenWidth, int screenHeight)
+    {
+        draw(g, map, screenWidth, screenHeight, 1);
+    }
+
+
+    /**
+        Draws the specified TileMap, with Sprites drawn between
+        their last saved position and their current position.
+        An interpolation of 1 draws the current positions.
+        @see Sprite#savePosition()
+    */
+    public void draw(Graphics2D g, TileMap map,
+        int screenWidth, int screenHeight, float interpolation)
     {
         Sprite player = map.getPlayer();
         int mapWidth = tilesToPixels(map.getWidth());
 
         // get the scrolling position of the map
         // based on player's position
-        int offsetX = screenWidth / 2 -
-            Math.round(player.getX()) - TILE_SIZE;
-        offsetX = Math.min(offsetX, 0);
-        offsetX = Math.max(offsetX, screenWidth - mapWidth);
+        int offsetX = getOffsetX(map,
+            player.getInterpolatedX(interpolation), screenWidth);
 
         // get the y offset to draw all sprites and tiles
         int offsetY = screenHeight -
@@ -141,37 +165,160 @@ public class TileMapRenderer {
             g.drawImage(backgroundC, x, y, null);
         }
 
-        // draw the visible tiles
+        // draw the visible chunks of tiles
+        if (map != cachedMap) {
+            resetChunkCache(map);
+        }
         int firstTileX = pixelsToTiles(-offsetX);
         int lastTileX = firstTileX +
             pixelsToTiles(screenWidth) + 1;
-        for (int y=0; y<map.getHeight(); y++) {
-            for (int x=firstTileX; x <= lastTileX; x++) {
-                Image image = map.getTile(x, y);
+        int firstChunkX = Math.max(0,
+            firstTileX >> TileMap.CHUNK_SIZE_BITS);
+        int lastChunkX = Math.min(map.getChunksWide() - 1,
+            lastTileX >> TileMap.CHUNK_SIZE_BITS);
+        for (int y=0; y<map.getChunksHigh(); y++) {
+            for (int x=firstChunkX; x <= lastChunkX; x++) {
+                if (!map.isChunkResident(x)) {
+                    continue;
+                }
+                Image image = getChunkImage(g, map, x, y);
                 if (image != null) {
                     g.drawImage(image,
-                        tilesToPixels(x) + offsetX,
-                        tilesToPixels(y) + offsetY,
+                        tilesToPixels(x << TileMap.CHUNK_SIZE_BITS) +
+                        offsetX,
+                        tilesToPixels(y << TileMap.CHUNK_SIZE_BITS) +
+                        offsetY,
                         null);
                 }
             }
         }
 
         // draw player
-        g.drawImage(player.getImage(),
-            Math.round(player.getX()) + offsetX,
-            Math.round(player.getY()) + offsetY,
-            null);
+        player.draw(g,
+            Math.round(player.getInterpolatedX(interpolation)) +
+            offsetX,
+            Math.round(player.getInterpolatedY(interpolation)) +
+            offsetY);
 
         // draw sprites
         Iterator i = map.getSprites();
         while (i.hasNext()) {
             Sprite sprite = (Sprite)i.next();
-            int x = Math.round(sprite.getX()) + offsetX;
-            int y = Math.round(sprite.getY()) + offsetY;
-            g.drawImage(sprite.getImage(), x, y, null);
+            int x = Math.round(
+                sprite.getInterpolatedX(interpolation)) + offsetX;
+            int y = Math.round(
+                sprite.getInterpolatedY(interpolation)) + offsetY;
+            sprite.draw(g, x, y);
+        }
+    }
+
+
+    /**
+        Forgets all cached chunk images and starts a new cache
+        for the specified map.
+    */
+    private void resetChunkCache(TileMap map) {
+        int chunksWide = map.getResidentChunksWide();
+        int numChunks = chunksWide * map.getChunksHigh();
+        cachedMap = map;
+        chunkImages = new Image[numChunks];
+        chunkImageVersions = new int[numChunks];
+        for (int i=0; i<numChunks; i++) {
+            // never drawn yet
+            chunkImageVersions[i] = map.getChunkVersion(
+                i % chunksWide, i / chunksWide) - 1;
+        }
+    }
+
 
-            // wake up the creature when it's on screen
+    /**
+        Gets the image of the specified chunk, drawing the chunk
+        first if it isn't cached or if its tiles have changed.
+        Returns null if the chunk has no tiles.
+    */
+    private Image getChunkImage(Graphics2D g, TileMap map,
+        int chunkX, int chunkY)
+    {
+        int chunksWide = map.getResidentChunksWide();
+        int index = chunkY * chunksWide + chunkX % chunksWide;
+        int version = map.getChunkVersion(chunkX, chunkY);
+        if (chunkImageVersions[index] == version) {
+            return chunkImages[index];
+        }
+
+        // find the tiles in this chunk
+        int firstX = chunkX << TileMap.CHUNK_SIZE_BITS;
+        int firstY = chunkY << TileMap.CHUNK_SIZE_BITS;
+        int lastX = Math.min(map.getWidth(),
+            firstX + TileMap.CHUNK_SIZE) - 1;
+        int lastY = Math.min(map.getHeight(),
+            firstY + TileMap.CHUNK_SIZE) - 1;
+
+        TilePalette palette = map.getPalette();
+        Image chunkImage = chunkImages[index];
+        Graphics2D chunkGraphics = null;
+        for (int y=firstY; y<=lastY; y++) {
+            for (int x=firstX; x<=lastX; x++) {
+                short id = map.getTileId(x, y);
+                if (id == TilePalette.EMPTY) {
+                    continue;
+                }
+                Image image = palette.getImage(id);
+                if (chunkGraphics == null) {
+                    // first tile - create or clear the image. In a
+                    // windowed map, the cached image may be of a
+                    // narrower chunk that was in the same place.
+                    int width = tilesToPixels(lastX - firstX + 1);
+                    int height = tilesToPixels(lastY - firstY + 1);
+                    if (chunkImage == null ||
+                        chunkImage.getWidth(null) != width ||
+                        chunkImage.getHeight(null) != height)
+                    {
+                        chunkImage = g.getDeviceConfiguration()
+                            .createCompatibleImage(width, height,
+                            Transparency.TRANSLUCENT);
+                    }
+                    chunkGraphics =
+                        (Graphics2D)chunkImage.getGraphics();
+                    chunkGraphics.setComposite(AlphaComposite.Clear);
+                    chunkGraphics.fillRect(0, 0,
+                        chunkImage.getWidth(null),
+                        chunkImage.getHeight(null));
+                    chunkGraphics.setComposite(
+                        AlphaComposite.SrcOver);
+                }
+                chunkGraphics.drawImage(image,
+                    tilesToPixels(x - firstX),
+                    tilesToPixels(y - firstY),
+                    null);
+            }
+        }
+
+        if (chunkGraphics != null) {
+            chunkGraphics.dispose();
+        }
+        else {
+            // empty chunk
+            chunkImage = null;
+        }
+        chunkImages[index] = chunkImage;
+        chunkImageVersions[index] = version;
+        return chunkImage;
+    }
+
+
+    /**
+        Wakes up the Creatures that are on screen. This is game
+        logic rather than drawing, so it's called every update
+        (even when nothing is drawn) instead of from draw().
+    */
+    public void wakeUpCreatures(TileMap map, int screenWidth) {
+        int offsetX = getOffsetX(map, map.getPlayer().getX(),
+            screenWidth);
+        Iterator i = map.getSprites();
+        while (i.hasNext()) {
+            Sprite sprite = (Sprite)i.next();
+            int x = Math.round(sprite.getX()) + offsetX;
             if (sprite instanceof Creature &&
                 x >= 0 && x < screenWidth)
             {
@@ -180,4 +327,30 @@ public class TileMapRenderer {
         }
     }
 
+
+    /**
+        Gets the leftmost tile column on screen, with the screen
+        centered on the player where possible.
+    */
+    public int getFirstVisibleTileX(TileMap map, int screenWidth) {
+        return pixelsToTiles(-getOffsetX(map, map.getPlayer().getX(),
+            screenWidth));
+    }
+
+
+    /**
+        Gets the horizontal scrolling position of the map, so
+        that the screen is centered on the player where possible.
+    */
+    private int getOffsetX(TileMap map, float playerX,
+        int screenWidth)
+    {
+        int mapWidth = tilesToPixels(map.getWidth());
+        int offsetX = screenWidth / 2 -
+            Math.round(playerX) - TILE_SIZE;
+        offsetX = Math.min(offsetX, 0);
+        offsetX = Math.max(offsetX, screenWidth - mapWidth);
+        return offsetX;
+    }
+
 }
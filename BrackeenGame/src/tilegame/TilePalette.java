@@ -0,0 +1,122 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Image;
+import java.util.Arrays;
+
+/**
+    The TilePalette class maps tile ids to tile Images and tile
+    properties. A TileMap stores only the id of each tile, so
+    many maps can share the same palette.
+    <p>Tiles can also have a map-file character (for example,
+    'A'), which is used to look up ids when parsing map files.
+    Id 0 (EMPTY) is always the empty tile.
+    <p>Tiles can be added while other threads read the palette
+    (for example, while a MapStream parses a map). The arrays
+    are copied on every change and published through volatile
+    fields, so reading never locks.
+*/
+public class TilePalette {
+
+    /**
+        The id of the empty tile.
+    */
+    public static final short EMPTY = 0;
+
+    // copied on every change, never changed once published
+    private volatile Image[] images;
+    private volatile boolean[] solid;
+    private volatile short[] idsByChar;
+
+    /**
+        Creates a new TilePalette with only the empty tile.
+    */
+    public TilePalette() {
+        images = new Image[1];
+        solid = new boolean[1];
+        idsByChar = new short[128];
+    }
+
+
+    /**
+        Adds a tile to this palette and returns its id.
+        @param ch The character that represents this tile in map
+        files, or 0 for none.
+        @param image The tile Image.
+        @param isSolid Whether Creatures collide with this tile.
+    */
+    public synchronized short add(char ch, Image image,
+        boolean isSolid)
+    {
+        short id = (short)images.length;
+        boolean[] newSolid = Arrays.copyOf(solid, id + 1);
+        newSolid[id] = isSolid;
+        solid = newSolid;
+        Image[] newImages = Arrays.copyOf(images, id + 1);
+        newImages[id] = image;
+        images = newImages;
+        if (ch > 0 && ch < idsByChar.length) {
+            short[] newIds = idsByChar.clone();
+            newIds[ch] = id;
+            idsByChar = newIds;
+        }
+        return id;
+    }
+
+
+    /**
+        Gets the id of the tile represented by a map-file
+        character. Returns EMPTY if the character isn't a tile.
+    */
+    public short getId(char ch) {
+        short[] ids = idsByChar;
+        if (ch < ids.length) {
+            return ids[ch];
+        }
+        return EMPTY;
+    }
+
+
+    /**
+        Gets the id of the specified tile Image, adding it as a
+        solid tile if it isn't in this palette yet. Returns
+        EMPTY for a null Image.
+    */
+    public synchronized short getId(Image image) {
+        if (image == null) {
+            return EMPTY;
+        }
+        Image[] images = this.images;
+        for (int id=1; id<images.length; id++) {
+            if (image.equals(images[id])) {
+                return (short)id;
+            }
+        }
+        return add((char)0, image, true);
+    }
+
+
+    /**
+        Gets the Image of the specified tile id. Returns null for
+        the empty tile.
+    */
+    public Image getImage(int id) {
+        return images[id];
+    }
+
+
+    /**
+        Checks if Creatures collide with the specified tile id.
+    */
+    public boolean isSolid(int id) {
+        return solid[id];
+    }
+
+
+    /**
+        Gets the number of tiles in this palette, including the
+        empty tile.
+    */
+    public int size() {
+        return images.length;
+    }
+}
@@ -46,6 +46,7 @@ public abstract class Creature extends Sprite {
         
         state = STATE_NORMAL;
         move = true;
+        updateGravity();
     }
 
 
@@ -94,6 +95,7 @@ public abstract class Creature extends Sprite {
         if(hurt) {
             iVidicua=ivida;
             state=STATE_DYING;
+            updateGravity();
         }
         else
             iVidicua=ivida;
@@ -120,10 +122,20 @@ public abstract class Creature extends Sprite {
                 setVelocityX(0);
                 setVelocityY(0);
             }
+            updateGravity();
         }
     }
 
 
+    /**
+        Keeps the Sprite's gravity flag in step with isFlying(),
+        which can depend on the state.
+    */
+    protected void updateGravity() {
+        setAffectedByGravity(!isFlying());
+    }
+
+
     /**
         Checks if this creature is alive.
     */
@@ -0,0 +1,173 @@
+package com.brackeen.javagamebook.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+    The AssetLoader class loads assets concurrently on a
+    WorkStealingPool and records how long each asset took to
+    load.
+    <p>Tasks submitted from outside the loader are started in the
+    order they are submitted. A task waiting with get() for a
+    task that hasn't started runs that task itself, so a task
+    may wait for tasks submitted before or by it. Tasks must not
+    wait for each other in a cycle.
+*/
+public class AssetLoader {
+
+    private WorkStealingPool pool;
+    private Map loadTimes;
+    private long startTime;
+    // time spent in tasks run on each thread, so a task waiting
+    // for another can leave out the time the other task took
+    private ThreadLocal taskTime;
+
+    /**
+        Creates a new AssetLoader with one thread per available
+        processor.
+    */
+    public AssetLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+        Creates a new AssetLoader with the specified number of
+        threads.
+    */
+    public AssetLoader(int numThreads) {
+        this(new WorkStealingPool("AssetLoader",
+            Math.max(1, numThreads)));
+    }
+
+
+    /**
+        Creates a new AssetLoader that runs its tasks on the
+        specified pool, which may be shared with other work.
+    */
+    public AssetLoader(WorkStealingPool pool) {
+        this.pool = pool;
+        loadTimes = new ConcurrentHashMap();
+        startTime = System.nanoTime();
+        taskTime = new ThreadLocal() {
+            protected Object initialValue() {
+                return new long[1];
+            }
+        };
+    }
+
+
+    /**
+        Runs a task that loads the named asset, and returns a
+        Future of its result. The time the task takes is recorded
+        under the asset's name, not counting the time of other
+        tasks it runs itself while waiting for them with get().
+    */
+    public CompletableFuture submit(final String name,
+        final Callable task)
+    {
+        return pool.submit(new Callable() {
+            public Object call() throws Exception {
+                long[] time = (long[])taskTime.get();
+                long nestedStart = time[0];
+                long taskStart = System.nanoTime();
+                try {
+                    return task.call();
+                }
+                finally {
+                    long elapsed = System.nanoTime() - taskStart;
+                    loadTimes.put(name, Long.valueOf(
+                        elapsed - (time[0] - nestedStart)));
+                    time[0] = nestedStart + elapsed;
+                }
+            }
+        });
+    }
+
+
+    /**
+        Waits for a Future and returns its result. Exceptions
+        thrown by the task are rethrown as RuntimeExceptions.
+        If the Future's task hasn't started, it is run on the
+        current thread.
+    */
+    public static Object get(Future future) {
+        WorkStealingPool.helpUntilDone(future);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                }
+                catch (InterruptedException ex) {
+                    // keep waiting - the asset is still needed
+                    interrupted = true;
+                }
+            }
+        }
+        catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+        Gets the load time of the named asset in milliseconds,
+        or -1 if it hasn't finished loading.
+    */
+    public float getLoadTime(String name) {
+        Long time = (Long)loadTimes.get(name);
+        return (time == null) ? -1 : time.longValue() / 1000000f;
+    }
+
+
+    /**
+        Prints the load time of every asset, slowest first, and
+        the time since this AssetLoader was created.
+    */
+    public void printLoadTimes(PrintStream out) {
+        ArrayList entries = new ArrayList(loadTimes.entrySet());
+        Collections.sort(entries, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                Long t1 = (Long)((Map.Entry)o1).getValue();
+                Long t2 = (Long)((Map.Entry)o2).getValue();
+                return t2.compareTo(t1);
+            }
+        });
+        Iterator i = entries.iterator();
+        while (i.hasNext()) {
+            Map.Entry entry = (Map.Entry)i.next();
+            out.println(((Long)entry.getValue()).longValue() / 1000000f +
+                " ms\t" + entry.getKey());
+        }
+        out.println(entries.size() + " assets, " +
+            (System.nanoTime() - startTime) / 1000000f + " ms elapsed");
+    }
+
+
+    /**
+        Gets the pool this loader runs its tasks on.
+    */
+    public WorkStealingPool getPool() {
+        return pool;
+    }
+
+
+    /**
+        Stops the loader threads. Tasks already running finish,
+        but waiting tasks are not run.
+    */
+    public void close() {
+        pool.close();
+    }
+}
@@ -0,0 +1,103 @@
+package com.brackeen.javagamebook.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+    The ChannelInputStream reads a region of a file through a
+    FileChannel, so only the bytes asked for are in memory. Reads
+    go straight into the caller's array.
+    <p>Optionally, the stream loops like a LoopingByteInputStream:
+    when the end of the region is reached, reading starts over
+    from the beginning of the region, and the looping stops when
+    the close() method is called.
+*/
+public class ChannelInputStream extends InputStream {
+
+    private FileChannel channel;
+    private long start;
+    private long end;
+    private long position;
+    private boolean loop;
+    private boolean closed;
+
+    /**
+        Creates a new ChannelInputStream that reads length bytes
+        from the channel, starting at the specified position.
+        The channel is closed when this stream is closed.
+    */
+    public ChannelInputStream(FileChannel channel, long start,
+        long length, boolean loop)
+    {
+        this.channel = channel;
+        this.start = start;
+        this.end = start + length;
+        this.position = start;
+        this.loop = loop;
+    }
+
+
+    public int read() throws IOException {
+        byte[] buffer = new byte[1];
+        int numBytesRead = read(buffer, 0, 1);
+        return (numBytesRead == 1) ? (buffer[0] & 0xff) : -1;
+    }
+
+
+    /**
+        Reads up to <code>length</code> bytes from the file. If
+        looping and the end of the region is reached, the reading
+        starts over from the beginning of the region. Returns -1
+        at the end of the region (if not looping), or if the
+        stream has been closed.
+    */
+    public int read(byte[] buffer, int offset, int length)
+        throws IOException
+    {
+        if (closed) {
+            return -1;
+        }
+        int totalBytesRead = 0;
+
+        while (totalBytesRead < length) {
+            if (position >= end) {
+                if (!loop || end <= start) {
+                    break;
+                }
+                position = start;
+            }
+            int size = (int)Math.min(length - totalBytesRead,
+                end - position);
+            int numBytesRead = channel.read(ByteBuffer.wrap(buffer,
+                offset + totalBytesRead, size), position);
+            if (numBytesRead == -1) {
+                // the file is shorter than the region
+                end = position;
+                continue;
+            }
+            position += numBytesRead;
+            totalBytesRead += numBytesRead;
+        }
+        return (totalBytesRead == 0 && length > 0) ? -1 :
+            totalBytesRead;
+    }
+
+
+    public int available() {
+        return (closed || loop) ? 0 : (int)Math.min(
+            Integer.MAX_VALUE, end - position);
+    }
+
+
+    /**
+        Closes the stream and the channel. Future calls to the
+        read() methods will return -1.
+    */
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+}
@@ -0,0 +1,675 @@
+package com.brackeen.javagamebook.util;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+    A WorkStealingPool is a fixed group of threads that run
+    tasks. Each thread has its own deque of tasks: tasks
+    submitted from one of the pool's threads go on that thread's
+    deque, which it runs newest first, and tasks submitted from
+    other threads go on a shared queue, which is run in order. A
+    thread with nothing to do steals the oldest task from another
+    thread's deque, so work spreads over every thread.
+    <p>submit() returns a CompletableFuture of the task's result.
+    runTask() runs a task without a Future. A task that waits for
+    another task's Future should call helpUntilDone() first: if
+    the other task hasn't started, it runs right away on the
+    waiting thread instead of waiting for a free one.
+    <p>The pool keeps statistics: the number of tasks waiting,
+    run, and stolen, and how long tasks waited before running.
+    <p>The threads start in the constructor and call
+    threadStarted() and threadStopped(), which subclasses can
+    override to set up and clean up thread-specific resources.
+    <p>A pool can instead run each task on its own virtual
+    thread, if the Java runtime has them (Java 21 or later). This
+    suits tasks that mostly block on I/O, like loading files:
+    thousands of them can wait at once without thousands of OS
+    threads. Each virtual thread calls threadStarted() and
+    threadStopped() around its one task. On older runtimes, the
+    pool falls back to its fixed group of platform threads.
+*/
+public class WorkStealingPool {
+
+    private static int poolID;
+
+    private static final boolean VIRTUAL_THREADS =
+        (createVirtualThreadFactory("VirtualThread-") != null);
+
+    private String name;
+    private Worker[] workers;
+    // running virtual threads, or null for platform threads
+    private Set virtualThreads;
+    private ThreadFactory virtualThreadFactory;
+    private ConcurrentLinkedQueue submissions;
+    private volatile boolean isAlive;
+    private volatile boolean isClosed;
+
+    // statistics
+    private AtomicInteger queuedCount;
+    private AtomicLong completedCount;
+    private AtomicLong stolenCount;
+    private AtomicLong totalLatency;
+    private AtomicLong maxLatency;
+    private AtomicLong totalRunTime;
+
+    /**
+        Creates a new WorkStealingPool with one thread per
+        available processor.
+    */
+    public WorkStealingPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+        Creates a new WorkStealingPool.
+        @param numThreads The number of threads in the pool.
+    */
+    public WorkStealingPool(int numThreads) {
+        this(nextPoolName(), numThreads);
+    }
+
+
+    /**
+        Creates a new WorkStealingPool whose threads are named
+        after the specified name.
+        @param numThreads The number of threads in the pool.
+    */
+    public WorkStealingPool(String name, int numThreads) {
+        this(name, numThreads, false);
+    }
+
+
+    /**
+        Creates a new WorkStealingPool whose threads are named
+        after the specified name. If virtualThreads is true and
+        virtual threads are supported, each task runs on a new
+        virtual thread, and numThreads isn't used. Otherwise, the
+        pool has numThreads platform threads.
+    */
+    public WorkStealingPool(String name, int numThreads,
+        boolean virtualThreads)
+    {
+        this.name = name;
+        isAlive = true;
+        submissions = new ConcurrentLinkedQueue();
+        queuedCount = new AtomicInteger();
+        completedCount = new AtomicLong();
+        stolenCount = new AtomicLong();
+        totalLatency = new AtomicLong();
+        maxLatency = new AtomicLong();
+        totalRunTime = new AtomicLong();
+
+        if (virtualThreads && VIRTUAL_THREADS) {
+            virtualThreadFactory = createVirtualThreadFactory(
+                name + "-");
+            this.virtualThreads = Collections.newSetFromMap(
+                new ConcurrentHashMap());
+            numThreads = 0;
+        }
+        workers = new Worker[Math.max(0, numThreads)];
+        for (int i=0; i<workers.length; i++) {
+            workers[i] = new Worker(i);
+        }
+        for (int i=0; i<workers.length; i++) {
+            workers[i].start();
+        }
+    }
+
+
+    private static synchronized String nextPoolName() {
+        return "WorkStealingPool-" + (poolID++);
+    }
+
+
+    /**
+        Gets a factory of virtual threads named with the
+        specified prefix, using Thread.ofVirtual(), which is looked
+        up by reflection so this class still runs on runtimes
+        without it. Returns null if there are no virtual threads.
+    */
+    private static ThreadFactory createVirtualThreadFactory(
+        String prefix)
+    {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").
+                invoke(null);
+            Class builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class,
+                long.class).invoke(builder, prefix, 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory)factory.invoke(builder);
+        }
+        catch (Exception ex) {
+            // no virtual threads
+            return null;
+        }
+    }
+
+
+    /**
+        Checks if the Java runtime supports virtual threads.
+    */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_THREADS;
+    }
+
+
+    /**
+        Checks if this pool runs each task on a virtual thread.
+    */
+    public boolean isVirtual() {
+        return (virtualThreads != null);
+    }
+
+
+    /**
+        Gets the name of this pool.
+    */
+    public String getName() {
+        return name;
+    }
+
+
+    /**
+        Gets the number of threads in this pool. For a virtual
+        pool, this is the number of tasks running.
+    */
+    public int getThreadCount() {
+        return isVirtual() ? virtualThreads.size() : workers.length;
+    }
+
+
+    /**
+        Requests a new task to run. This method returns
+        immediately, and the task executes on the next available
+        idle thread in this pool. Exceptions thrown by the task
+        are passed to the thread's UncaughtExceptionHandler.
+        @param task The task to run. If null, no action is taken.
+        @throws IllegalStateException if this pool is already
+        closed.
+    */
+    public void runTask(Runnable task) {
+        if (task != null) {
+            execute(new Task(task, null, null));
+        }
+    }
+
+
+    /**
+        Requests a task to run, and returns a CompletableFuture
+        that completes with its result, or exceptionally with
+        whatever it throws.
+        @throws IllegalStateException if this pool is already
+        closed.
+    */
+    public CompletableFuture submit(Callable task) {
+        TaskFuture future = new TaskFuture();
+        execute(new Task(null, task, future));
+        return future;
+    }
+
+
+    /**
+        Requests a task to run, and returns a CompletableFuture
+        that completes with null when the task is done.
+        @throws IllegalStateException if this pool is already
+        closed.
+    */
+    public CompletableFuture submit(Runnable task) {
+        TaskFuture future = new TaskFuture();
+        execute(new Task(task, null, future));
+        return future;
+    }
+
+
+    private void execute(Task task) {
+        if (!isAlive) {
+            throw new IllegalStateException();
+        }
+        queuedCount.incrementAndGet();
+        if (virtualThreads != null) {
+            Thread thread = virtualThreadFactory.newThread(
+                new VirtualTask(task));
+            virtualThreads.add(thread);
+            thread.start();
+            return;
+        }
+        Thread thread = Thread.currentThread();
+        if (thread instanceof Worker && ((Worker)thread).getPool() == this) {
+            ((Worker)thread).deque.addFirst(task);
+        }
+        else {
+            submissions.add(task);
+        }
+        if (isClosed) {
+            // closed while adding the task
+            cancelAll(submissions);
+        }
+        wakeWorker();
+    }
+
+
+    /**
+        If the Future is of a task submitted to a WorkStealingPool
+        that hasn't started yet, runs the task on the current
+        thread. A task that waits for another task should call
+        this first, so the other task can't be stuck behind it
+        waiting for a free thread. No other task is run, so this
+        never runs a task that could be waiting for the caller.
+    */
+    public static void helpUntilDone(Future future) {
+        if (!(future instanceof TaskFuture)) {
+            return;
+        }
+        Task task = ((TaskFuture)future).task;
+        if (task != null && task.claim()) {
+            task.getPool().queuedCount.decrementAndGet();
+            task.run();
+        }
+    }
+
+
+    /**
+        Wakes up one idle worker, if any.
+    */
+    private void wakeWorker() {
+        for (int i=0; i<workers.length; i++) {
+            if (workers[i].idle) {
+                LockSupport.unpark(workers[i]);
+                return;
+            }
+        }
+    }
+
+
+    /**
+        Gets the number of tasks waiting for a thread.
+    */
+    public int getTaskCount() {
+        return queuedCount.get();
+    }
+
+
+    /**
+        Gets the number of tasks run.
+    */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+
+    /**
+        Gets the number of tasks a thread took from another
+        thread's deque.
+    */
+    public long getStolenCount() {
+        return stolenCount.get();
+    }
+
+
+    /**
+        Gets the mean time, in milliseconds, tasks waited
+        between being submitted and starting to run.
+    */
+    public float getMeanLatency() {
+        long count = completedCount.get();
+        return (count == 0) ? 0 :
+            totalLatency.get() / 1000000f / count;
+    }
+
+
+    /**
+        Gets the longest time, in milliseconds, a task waited
+        between being submitted and starting to run.
+    */
+    public float getMaxLatency() {
+        return maxLatency.get() / 1000000f;
+    }
+
+
+    /**
+        Gets the mean time, in milliseconds, tasks took to run.
+    */
+    public float getMeanRunTime() {
+        long count = completedCount.get();
+        return (count == 0) ? 0 :
+            totalRunTime.get() / 1000000f / count;
+    }
+
+
+    /**
+        Returns a one-line summary of this pool's statistics.
+    */
+    public String getStats() {
+        return name + ": " + getThreadCount() + " threads, " +
+            getTaskCount() + " queued, " + getCompletedCount() +
+            " run, " + getStolenCount() + " stolen, latency mean " +
+            getMeanLatency() + " ms, max " + getMaxLatency() +
+            " ms, run time mean " + getMeanRunTime() + " ms";
+    }
+
+
+    /**
+        Closes this pool and returns immediately. All threads
+        are stopped, and any waiting tasks are not executed;
+        their Futures are cancelled. Once a pool is closed, no
+        more tasks can be run on it.
+    */
+    public void close() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isAlive = false;
+            isClosed = true;
+        }
+        for (int i=0; i<workers.length; i++) {
+            workers[i].interrupt();
+        }
+        if (virtualThreads != null) {
+            Iterator i = virtualThreads.iterator();
+            while (i.hasNext()) {
+                ((Thread)i.next()).interrupt();
+            }
+        }
+        cancelAll(submissions);
+        for (int i=0; i<workers.length; i++) {
+            cancelAll(workers[i].deque);
+        }
+    }
+
+
+    private void cancelAll(Queue tasks) {
+        Task task;
+        while ((task = (Task)tasks.poll()) != null) {
+            if (task.claim()) {
+                queuedCount.decrementAndGet();
+                task.cancel();
+            }
+        }
+    }
+
+
+    /**
+        Closes this pool and waits for all running threads to
+        finish. Any waiting tasks are executed.
+    */
+    public void join() {
+        isAlive = false;
+        for (int i=0; i<workers.length; i++) {
+            LockSupport.unpark(workers[i]);
+        }
+        for (int i=0; i<workers.length; i++) {
+            if (workers[i] != Thread.currentThread()) {
+                try {
+                    workers[i].join();
+                }
+                catch (InterruptedException ex) { }
+            }
+        }
+        if (virtualThreads != null) {
+            Object[] threads = virtualThreads.toArray();
+            for (int i=0; i<threads.length; i++) {
+                if (threads[i] != Thread.currentThread()) {
+                    try {
+                        ((Thread)threads[i]).join();
+                    }
+                    catch (InterruptedException ex) { }
+                }
+            }
+        }
+    }
+
+
+    /**
+        Signals that a pool thread has started. This method
+        does nothing by default; subclasses should override to do
+        any thread-specific startup tasks.
+    */
+    protected void threadStarted() {
+        // do nothing
+    }
+
+
+    /**
+        Signals that a pool thread has stopped. This method
+        does nothing by default; subclasses should override to do
+        any thread-specific cleanup tasks.
+    */
+    protected void threadStopped() {
+        // do nothing
+    }
+
+
+    /**
+        A task waiting to run, with the Future of its result. A
+        task stays in its queue when helpUntilDone() runs it, so
+        whichever thread claims it first runs it.
+    */
+    private class Task {
+
+        private Runnable runnable;
+        private Callable callable;
+        private CompletableFuture future;
+        private long submitTime;
+        private AtomicBoolean claimed;
+
+        public Task(Runnable runnable, Callable callable,
+            TaskFuture future)
+        {
+            this.runnable = runnable;
+            this.callable = callable;
+            this.future = future;
+            submitTime = System.nanoTime();
+            claimed = new AtomicBoolean();
+            if (future != null) {
+                future.task = this;
+            }
+        }
+
+        public WorkStealingPool getPool() {
+            return WorkStealingPool.this;
+        }
+
+        /**
+            Claims this task for the current thread. Returns false
+            if another thread already claimed it.
+        */
+        public boolean claim() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            if (future != null) {
+                // the Future no longer needs to find this task
+                ((TaskFuture)future).task = null;
+            }
+            return true;
+        }
+
+        public void run() {
+            if (future != null && future.isDone()) {
+                // cancelled before it started
+                return;
+            }
+            long startTime = System.nanoTime();
+            long latency = startTime - submitTime;
+            totalLatency.addAndGet(latency);
+            long max = maxLatency.get();
+            while (latency > max &&
+                !maxLatency.compareAndSet(max, latency))
+            {
+                max = maxLatency.get();
+            }
+
+            try {
+                Object result = null;
+                if (callable != null) {
+                    result = callable.call();
+                }
+                else {
+                    runnable.run();
+                }
+                if (future != null) {
+                    future.complete(result);
+                }
+            }
+            catch (Throwable t) {
+                if (future != null) {
+                    future.completeExceptionally(t);
+                }
+                else {
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().
+                        uncaughtException(thread, t);
+                }
+            }
+            finally {
+                totalRunTime.addAndGet(System.nanoTime() - startTime);
+                completedCount.incrementAndGet();
+            }
+        }
+
+        public void cancel() {
+            if (future != null) {
+                future.completeExceptionally(
+                    new CancellationException());
+            }
+        }
+    }
+
+
+    /**
+        The Future of a submitted task, which helpUntilDone() uses
+        to find the task.
+    */
+    private static class TaskFuture extends CompletableFuture {
+
+        private volatile Task task;
+    }
+
+
+    /**
+        Runs one task on its own virtual thread.
+    */
+    private class VirtualTask implements Runnable {
+
+        private Task task;
+
+        public VirtualTask(Task task) {
+            this.task = task;
+        }
+
+        public void run() {
+            threadStarted();
+            try {
+                if (task.claim()) {
+                    queuedCount.decrementAndGet();
+                    if (isClosed) {
+                        task.cancel();
+                    }
+                    else {
+                        task.run();
+                    }
+                }
+            }
+            finally {
+                threadStopped();
+                virtualThreads.remove(Thread.currentThread());
+            }
+        }
+    }
+
+
+    /**
+        A Worker is a thread of the pool, with its own deque of
+        tasks.
+    */
+    private class Worker extends Thread {
+
+        private int index;
+        private ConcurrentLinkedDeque deque;
+        private volatile boolean idle;
+
+        public Worker(int index) {
+            super(name + "-" + index);
+            this.index = index;
+            deque = new ConcurrentLinkedDeque();
+            setDaemon(true);
+        }
+
+
+        public WorkStealingPool getPool() {
+            return WorkStealingPool.this;
+        }
+
+
+        public void run() {
+            // signal that this thread has started
+            threadStarted();
+
+            while (!isClosed && !isInterrupted()) {
+                Task task = nextTask();
+                if (task != null) {
+                    if (task.claim()) {
+                        queuedCount.decrementAndGet();
+                        task.run();
+                    }
+                    continue;
+                }
+                if (!isAlive) {
+                    // joined, and there is nothing left to do
+                    break;
+                }
+
+                // wait for a task. Checking the count after
+                // becoming idle means a task submitted in between
+                // isn't missed.
+                idle = true;
+                if (queuedCount.get() == 0 && isAlive) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            }
+
+            // signal that this thread has stopped
+            threadStopped();
+        }
+
+
+        /**
+            Gets this thread's newest task, or the oldest shared
+            task, or a task stolen from another thread.
+        */
+        private Task nextTask() {
+            Task task = (Task)deque.pollFirst();
+            if (task == null) {
+                task = (Task)submissions.poll();
+            }
+            for (int i=1; task == null && i<workers.length; i++) {
+                Worker victim = workers[(index + i) % workers.length];
+                task = (Task)victim.deque.pollLast();
+                if (task != null) {
+                    stolenCount.incrementAndGet();
+                }
+            }
+            return task;
+        }
+    }
+}